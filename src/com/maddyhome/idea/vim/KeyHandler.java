@@ -59,7 +59,6 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyEvent;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -348,10 +347,14 @@ public class KeyHandler {
 
     final KeyMapping mapping = VimPlugin.getKey().getKeyMapping(mappingState.getMappingMode());
 
+    // Follow the new key from the node of the previous keys
+    final KeyMapping.Node node = mapping.getNode(mappingState.getKeys(), mappingState.getMappingNode());
+    mappingState.setMappingNode(node);
+
     // Returns true if any of these methods handle the key. False means that the key is unrelated to mapping and should
     // be processed as normal.
-    return handleUnfinishedMappingSequence(editor, mappingState, mapping)
-      || handleCompleteMappingSequence(editor, context, commandState, mappingState, mapping, key)
+    return handleUnfinishedMappingSequence(editor, mappingState, node)
+      || handleCompleteMappingSequence(editor, context, commandState, mappingState, mapping, node, key)
       || handleAbandonedMappingSequence(editor, mappingState, context);
   }
 
@@ -364,13 +367,13 @@ public class KeyHandler {
 
   private boolean handleUnfinishedMappingSequence(@NotNull Editor editor,
                                                   @NotNull MappingState mappingState,
-                                                  @NotNull KeyMapping mapping) {
+                                                  @Nullable KeyMapping.Node node) {
     // Is there at least one mapping that starts with the current sequence? This does not include complete matches,
     // unless a sequence is also a prefix for another mapping. We eagerly evaluate the shortest mapping, so even if a
     // mapping is a prefix, it will get evaluated when the next character is entered.
     // Note that currentlyUnhandledKeySequence is the same as the state after commandState.getMappingKeys().add(key). It
     // would be nice to tidy ths up
-    if (!mapping.isPrefix(mappingState.getKeys())) {
+    if (node == null || !node.isPrefix()) {
       return false;
     }
 
@@ -404,10 +407,11 @@ public class KeyHandler {
                                                 @NotNull CommandState commandState,
                                                 @NotNull MappingState mappingState,
                                                 @NotNull KeyMapping mapping,
+                                                @Nullable KeyMapping.Node node,
                                                 KeyStroke key) {
 
     // The current sequence isn't a prefix, check to see if it's a completed sequence.
-    final MappingInfo currentMappingInfo = mapping.get(mappingState.getKeys());
+    final MappingInfo currentMappingInfo = node != null ? node.getMappingInfo() : null;
     MappingInfo mappingInfo = currentMappingInfo;
     if (mappingInfo == null) {
       // It's an abandoned sequence, check to see if the previous sequence was a complete sequence.
@@ -420,11 +424,9 @@ public class KeyHandler {
       // mappingState.detachKeys and look for the longest complete sequence in the returned list, evaluate it, and then
       // replay any keys not yet handled. NB: The actual implementation should be compared to Vim behaviour to see what
       // should actually happen.
-      final ArrayList<KeyStroke> previouslyUnhandledKeySequence = new ArrayList<>();
-      mappingState.getKeys().forEach(previouslyUnhandledKeySequence::add);
-      if (previouslyUnhandledKeySequence.size() > 1) {
-        previouslyUnhandledKeySequence.remove(previouslyUnhandledKeySequence.size() - 1);
-        mappingInfo = mapping.get(previouslyUnhandledKeySequence);
+      final List<KeyStroke> keys = mappingState.getKeys();
+      if (keys.size() > 1) {
+        mappingInfo = mapping.get(keys.subList(0, keys.size() - 1));
       }
     }
 
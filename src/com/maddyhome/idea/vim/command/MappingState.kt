@@ -1,14 +1,20 @@
 package com.maddyhome.idea.vim.command
 
+import com.maddyhome.idea.vim.key.KeyMapping
 import com.maddyhome.idea.vim.option.OptionsManager
 import java.awt.event.ActionListener
 import javax.swing.KeyStroke
 import javax.swing.Timer
 
 class MappingState {
-  val keys: Iterable<KeyStroke>
+  val keys: List<KeyStroke>
     get() = keyList
 
+  /**
+   * The node of [keys] in the trie of the current [KeyMapping], so the next key is looked up from there
+   */
+  var mappingNode: KeyMapping.Node? = null
+
   var mappingMode = MappingMode.NORMAL
 
   private val timer = Timer(OptionsManager.timeoutlen.value(), null)
@@ -37,12 +43,14 @@ class MappingState {
   fun detachKeys(): List<KeyStroke> {
     val currentKeys = keyList
     keyList = mutableListOf()
+    mappingNode = null
     return currentKeys
   }
 
   fun resetMappingSequence() {
     stopMappingTimer()
     keyList.clear()
+    mappingNode = null
     // NOTE: We intentionally don't reset mapping mode here
   }
 }
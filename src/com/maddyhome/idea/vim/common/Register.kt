@@ -24,41 +24,62 @@ import java.awt.event.KeyEvent
 import java.util.*
 import javax.swing.KeyStroke
 
+/**
+ * The contents of a register.
+ *
+ * Yanked and deleted text is kept as a string, which registers like ", 0 and 1 can share. Only the registers that
+ * were recorded or set from keys, e.g. macros, keep a list of keys.
+ */
 class Register {
   var name: Char
   val type: SelectionType
-  val keys: MutableList<KeyStroke>
-  val transferableData: MutableList<out TextBlockTransferableData>
-  val rawText: String?
+  private var textValue: String?
+  private var recordedKeys: MutableList<KeyStroke>?
+  var transferableData: List<TextBlockTransferableData>
+    private set
+  private val rawTextValue: String?
 
   constructor(name: Char, type: SelectionType, keys: MutableList<KeyStroke>) {
     this.name = name
     this.type = type
-    this.keys = keys
-    this.transferableData = mutableListOf()
-    this.rawText = text
+    this.textValue = null
+    this.recordedKeys = keys
+    this.transferableData = emptyList()
+    this.rawTextValue = null
   }
 
-  constructor(name: Char, type: SelectionType, text: String, transferableData: MutableList<out TextBlockTransferableData>) {
+  constructor(name: Char, type: SelectionType, text: String, transferableData: List<TextBlockTransferableData>) {
     this.name = name
     this.type = type
-    this.keys = StringHelper.stringToKeys(text)
+    this.textValue = text
+    this.recordedKeys = null
     this.transferableData = transferableData
-    this.rawText = text
+    this.rawTextValue = null
   }
 
-  constructor(name: Char, type: SelectionType, text: String, transferableData: MutableList<out TextBlockTransferableData>, rawText: String) {
+  constructor(name: Char, type: SelectionType, text: String, transferableData: List<TextBlockTransferableData>, rawText: String) {
     this.name = name
     this.type = type
-    this.keys = StringHelper.stringToKeys(text)
+    this.textValue = text
+    this.recordedKeys = null
     this.transferableData = transferableData
-    this.rawText = rawText
+    this.rawTextValue = rawText
   }
 
+  /**
+   * The keys of the register. For a register that holds text, the keys are made from the text on every call.
+   */
+  val keys: List<KeyStroke>
+    get() = recordedKeys ?: StringHelper.stringToKeys(textValue ?: "")
+
+  /**
+   * The text of the register, or null if the register holds keys that aren't characters
+   */
   val text: String?
     get() {
-      val builder = StringBuilder()
-      for (key in keys) {
+      val recorded = recordedKeys ?: return textValue
+      val builder = StringBuilder(recorded.size)
+      for (key in recorded) {
         val c = key.keyChar
         if (c == KeyEvent.CHAR_UNDEFINED) {
           return null
@@ -68,16 +89,30 @@ class Register {
       return builder.toString()
     }
 
+  val rawText: String?
+    get() = rawTextValue ?: text
+
   /**
    * Append the supplied text to any existing text.
    */
   fun addTextAndResetTransferableData(text: String) {
-    addKeys(StringHelper.stringToKeys(text))
-    transferableData.clear()
+    val recorded = recordedKeys
+    if (recorded != null) {
+      recorded.addAll(StringHelper.stringToKeys(text))
+    }
+    else {
+      textValue = (textValue ?: "") + text
+    }
+    // The data may be shared with other registers, so it's replaced instead of cleared
+    transferableData = emptyList()
   }
 
   fun addKeys(keys: List<KeyStroke>) {
-    this.keys.addAll(keys)
+    val recorded = recordedKeys ?: StringHelper.stringToKeys(textValue ?: "").also {
+      recordedKeys = it
+      textValue = null
+    }
+    recorded.addAll(keys)
   }
 
   object KeySorter : Comparator<Register> {
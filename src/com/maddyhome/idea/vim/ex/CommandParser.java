@@ -17,6 +17,7 @@
  */
 package com.maddyhome.idea.vim.ex;
 
+import com.google.common.collect.ImmutableMap;
 import com.intellij.openapi.actionSystem.DataContext;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -38,15 +39,17 @@ import com.maddyhome.idea.vim.helper.Msg;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Maintains a tree of Ex commands based on the required and optional parts of the command names. Parses and
- * executes Ex commands entered by the user.
+ * Maintains a map of Ex commands from every allowed abbreviation of their names, based on the required and optional
+ * parts of the command names. Parses and executes Ex commands entered by the user.
  */
 public class CommandParser {
   private static final int MAX_RECURSION = 100;
+  private static final int PARSE_CACHE_SIZE = 100;
   private static final Pattern TRIM_WHITESPACE = Pattern.compile("[ \\t]*(.*)[ \\t\\n\\r]+", Pattern.DOTALL);
   public static final ExtensionPointName<ExBeanClass> EX_COMMAND_EP = ExtensionPointName.create("IdeaVIM.vimExCommand");
 
@@ -70,7 +73,8 @@ public class CommandParser {
   }
 
   public void unregisterHandlers() {
-    root.clear();
+    registeredNames.clear();
+    commandNames = ImmutableMap.of();
   }
 
   /**
@@ -78,6 +82,7 @@ public class CommandParser {
    */
   public void registerHandlers() {
     EX_COMMAND_EP.extensions().forEach(ExBeanClass::register);
+    commandNames = ImmutableMap.copyOf(registeredNames);
     registerEpListener();
   }
 
@@ -204,15 +209,8 @@ public class CommandParser {
     if (cmd.length() == 0) {
       return new GotoLineHandler();
     }
-    // See if the user entered a supported command by checking each character entered
-    CommandNode node = root;
-    for (int i = 0; i < cmd.length(); i++) {
-      node = node.getChild(cmd.charAt(i));
-      if (node == null) {
-        return null;
-      }
-    }
-    final ExBeanClass handlerHolder = node.getCommandHandler();
+    // Every allowed abbreviation of every command name is in the map
+    final ExBeanClass handlerHolder = commandNames.get(cmd);
     return handlerHolder != null ? handlerHolder.getHandler() : null;
   }
 
@@ -224,11 +222,23 @@ public class CommandParser {
    * @throws ExException if the text is syntactically incorrect
    */
   public @NotNull ExCommand parse(@NotNull String cmd) throws ExException {
+    final ParsedCommand parsed;
+    synchronized (parseCache) {
+      parsed = parseCache.get(cmd);
+    }
+    if (parsed != null) {
+      final ExCommand command = parsed.toExCommand();
+      if (command != null) {
+        return command;
+      }
+    }
+
     // This is a complicated state machine that should probably be rewritten
     if (logger.isDebugEnabled()) {
       logger.debug("processing `" + cmd + "'");
     }
     State state = State.START;
+    List<RangeText> rangeTexts = new ArrayList<>(); // The text of the ranges, to create them again from the cache
     Ranges ranges = new Ranges(); // The list of ranges
     StringBuilder command = new StringBuilder(); // The command
     StringBuilder argument = new StringBuilder(); // The command's argument(s)
@@ -430,6 +440,7 @@ public class CommandParser {
               break;
             }
             ranges.addRange(range);
+            rangeTexts.add(new RangeText(location.toString(), offsetTotal, move));
             // Could there be more ranges - nope - at end, start command
             if (ch == ':' || ch == '\n') {
               state = State.COMMAND;
@@ -548,6 +559,9 @@ public class CommandParser {
     if (matcher.matches()) {
       argumentString = matcher.group(1);
     }
+    synchronized (parseCache) {
+      parseCache.put(cmd, new ParsedCommand(rangeTexts, command.toString(), argumentString));
+    }
     return new ExCommand(ranges, command.toString(), argumentString);
   }
 
@@ -565,45 +579,70 @@ public class CommandParser {
       throw new RuntimeException("Cannot create an ex command: " + handlerHolder);
     }
     for (CommandName name : names) {
-      CommandNode node = root;
-      String text = name.getRequired();
-      // Build a tree for each character in the required portion of the command name
-      for (int i = 0; i < text.length() - 1; i++) {
-        CommandNode cn = node.getChild(text.charAt(i));
-        if (cn == null) {
-          cn = node.addChild(text.charAt(i), null);
-        }
+      // The required part of the name replaces a previous command, an abbreviation using the optional part doesn't
+      final String required = name.getRequired();
+      registeredNames.put(required, handlerHolder);
 
-        node = cn;
+      final String optional = name.getOptional();
+      for (int i = 1; i <= optional.length(); i++) {
+        registeredNames.putIfAbsent(required + optional.substring(0, i), handlerHolder);
       }
+    }
+  }
 
-      // For the last character we need to add the actual handler
-      CommandNode cn = node.getChild(text.charAt(text.length() - 1));
-      if (cn == null) {
-        cn = node.addChild(text.charAt(text.length() - 1), handlerHolder);
-      }
-      else {
-        cn.setCommandHandler(handlerHolder);
-      }
-      node = cn;
-
-      // Now add the handler for each character in the optional portion of the command name
-      text = name.getOptional();
-      for (int i = 0; i < text.length(); i++) {
-        cn = node.getChild(text.charAt(i));
-        if (cn == null) {
-          cn = node.addChild(text.charAt(i), handlerHolder);
-        }
-        else if (cn.getCommandHandler() == null) {
-          cn.setCommandHandler(handlerHolder);
-        }
+  /**
+   * The command names and abbreviations of the handlers that are added. {@link #registerHandlers()} copies them to
+   * {@link #commandNames} once all the handlers are added.
+   */
+  private final @NotNull Map<String, ExBeanClass> registeredNames = new HashMap<>();
+  private @NotNull Map<String, ExBeanClass> commandNames = ImmutableMap.of();
 
-        node = cn;
-      }
+  /**
+   * Recently parsed command text. Ranges are stateful, and e.g. a search range uses the last search pattern when it is
+   * created, so only their text is kept and they are created again for every command.
+   */
+  private final @NotNull Map<String, ParsedCommand> parseCache = new LinkedHashMap<String, ParsedCommand>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ParsedCommand> eldest) {
+      return size() > PARSE_CACHE_SIZE;
+    }
+  };
+
+  private static class RangeText {
+    private final @NotNull String location;
+    private final int offset;
+    private final boolean move;
+
+    RangeText(@NotNull String location, int offset, boolean move) {
+      this.location = location;
+      this.offset = offset;
+      this.move = move;
     }
   }
 
-  private final @NotNull CommandNode root = new CommandNode();
+  private static class ParsedCommand {
+    private final @NotNull List<RangeText> ranges;
+    private final @NotNull String command;
+    private final @NotNull String argument;
+
+    ParsedCommand(@NotNull List<RangeText> ranges, @NotNull String command, @NotNull String argument) {
+      this.ranges = ranges;
+      this.command = command;
+      this.argument = argument;
+    }
+
+    @Nullable ExCommand toExCommand() {
+      final Ranges ranges = new Ranges();
+      for (RangeText text : this.ranges) {
+        final Range[] range = Range.createRange(text.location, text.offset, text.move);
+        if (range == null) {
+          return null;
+        }
+        ranges.addRange(range);
+      }
+      return new ExCommand(ranges, command, argument);
+    }
+  }
 
   private enum State {
     START,
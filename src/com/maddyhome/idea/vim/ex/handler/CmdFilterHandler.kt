@@ -32,7 +32,8 @@ import com.maddyhome.idea.vim.helper.Msg
 import java.io.IOException
 
 class CmdFilterHandler : CommandHandler.SingleExecution() {
-  override val argFlags = flags(RangeFlag.RANGE_OPTIONAL, ArgumentFlag.ARGUMENT_OPTIONAL, Access.WRITABLE)
+  // The command runs outside of a write action, ProcessGroup.executeFilter changes the document in one at the end
+  override val argFlags = flags(RangeFlag.RANGE_OPTIONAL, ArgumentFlag.ARGUMENT_OPTIONAL, Access.SELF_SYNCHRONIZED)
   override fun execute(editor: Editor, context: DataContext, cmd: ExCommand): Boolean {
     logger.info("execute")
 
@@ -58,6 +59,10 @@ class CmdFilterHandler : CommandHandler.SingleExecution() {
         true
       } else {
         // Filter
+        if (!editor.document.isWritable) {
+          VimPlugin.indicateError()
+          return false
+        }
         val range = cmd.getTextRange(editor, false)
         VimPlugin.getProcess().executeFilter(editor, range, command)
       }
@@ -38,7 +38,9 @@ class RegistersHandler : CommandHandler.SingleExecution() {
           SelectionType.CHARACTER_WISE -> "c"
           SelectionType.BLOCK_WISE -> "b"
         }
-        "  $type  \"${reg.name}   ${StringHelper.toPrintableCharacters(reg.keys).take(200)}"
+        // Only the start of the text is shown, so only that is turned into keys
+        val keys = reg.text?.let { StringHelper.stringToKeys(it.take(200)) } ?: reg.keys
+        "  $type  \"${reg.name}   ${StringHelper.toPrintableCharacters(keys).take(200)}"
       }
 
     ExOutputModel.getInstance(editor).output(regs)
@@ -21,15 +21,16 @@ package com.maddyhome.idea.vim.ex.handler
 import com.intellij.openapi.actionSystem.DataContext
 import com.intellij.openapi.editor.Caret
 import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.util.text.StringUtil
 import com.maddyhome.idea.vim.VimPlugin
 import com.maddyhome.idea.vim.ex.CommandHandler
 import com.maddyhome.idea.vim.ex.ExCommand
 import com.maddyhome.idea.vim.ex.ExException
 import com.maddyhome.idea.vim.ex.flags
 import com.maddyhome.idea.vim.ex.ranges.LineRange
+import com.maddyhome.idea.vim.group.LineSorter
+import com.maddyhome.idea.vim.helper.MessageHelper
+import com.maddyhome.idea.vim.helper.Msg
 import com.maddyhome.idea.vim.helper.inBlockSubMode
-import java.util.*
 
 /**
  * @author Alex Selesse
@@ -39,18 +40,11 @@ class SortHandler : CommandHandler.SingleExecution() {
 
   @Throws(ExException::class)
   override fun execute(editor: Editor, context: DataContext, cmd: ExCommand): Boolean {
-    val arg = cmd.argument
-    val nonEmptyArg = arg.trim().isNotEmpty()
-
-    val reverse = nonEmptyArg && "!" in arg
-    val ignoreCase = nonEmptyArg && "i" in arg
-    val number = nonEmptyArg && "n" in arg
-
-    val lineComparator = LineComparator(ignoreCase, number, reverse)
+    val lineSorter = parseArguments(cmd.argument)
     if (editor.inBlockSubMode) {
       val primaryCaret = editor.caretModel.primaryCaret
       val range = getLineRange(editor, primaryCaret, cmd)
-      val worked = VimPlugin.getChange().sortRange(editor, range, lineComparator)
+      val worked = VimPlugin.getChange().sortRange(editor, range, lineSorter)
       primaryCaret.moveToOffset(VimPlugin.getMotion().moveCaretToLineStartSkipLeading(editor, range.startLine))
       return worked
     }
@@ -58,7 +52,7 @@ class SortHandler : CommandHandler.SingleExecution() {
     var worked = true
     for (caret in editor.caretModel.allCarets) {
       val range = getLineRange(editor, caret, cmd)
-      if (!VimPlugin.getChange().sortRange(editor, range, lineComparator)) {
+      if (!VimPlugin.getChange().sortRange(editor, range, lineSorter)) {
         worked = false
       }
       caret.moveToOffset(VimPlugin.getMotion().moveCaretToLineStartSkipLeading(editor, range.startLine))
@@ -93,21 +87,58 @@ class SortHandler : CommandHandler.SingleExecution() {
     return normalizedRange
   }
 
-  private class LineComparator(private val myIgnoreCase: Boolean, private val myNumber: Boolean, private val myReverse: Boolean) : Comparator<String> {
-
-    override fun compare(o1: String, o2: String): Int {
-      var o1ToCompare = o1
-      var o2ToCompare = o2
-      if (myReverse) {
-        val tmp = o2ToCompare
-        o2ToCompare = o1ToCompare
-        o1ToCompare = tmp
+  /**
+   * Parses the flags and the pattern of :sort, e.g. "! ui /pattern/"
+   */
+  @Throws(ExException::class)
+  private fun parseArguments(arg: String): LineSorter {
+    var reverse = false
+    var ignoreCase = false
+    var number = false
+    var unique = false
+    var sortOnMatch = false
+    var pattern: String? = null
+
+    var i = 0
+    loop@ while (i < arg.length) {
+      val c = arg[i]
+      when {
+        c.isWhitespace() -> Unit
+        c == '!' -> reverse = true
+        c == 'i' -> ignoreCase = true
+        c == 'n' -> number = true
+        c == 'u' -> unique = true
+        c == 'r' -> sortOnMatch = true
+        c == '"' -> break@loop
+        c.isLetter() || c == '\\' || c == '|' -> throw ExException(MessageHelper.message(Msg.e_invarg, arg))
+        else -> {
+          val end = findPatternEnd(arg, i + 1, c)
+          if (end == -1) throw ExException(MessageHelper.message(Msg.e_invarg, arg))
+          val found = arg.substring(i + 1, end)
+          pattern = if (found.isNotEmpty()) found else {
+            VimPlugin.getSearch().lastSearch ?: throw ExException(MessageHelper.message(Msg.e_noprevre))
+          }
+          i = end
+        }
       }
-      if (myIgnoreCase) {
-        o1ToCompare = o1ToCompare.toUpperCase()
-        o2ToCompare = o2ToCompare.toUpperCase()
+      i++
+    }
+
+    return LineSorter(ignoreCase, number, reverse, unique, pattern, sortOnMatch)
+  }
+
+  /**
+   * Finds the delimiter that ends a pattern, skipping escaped characters
+   */
+  private fun findPatternEnd(arg: String, start: Int, delimiter: Char): Int {
+    var i = start
+    while (i < arg.length) {
+      when (arg[i]) {
+        '\\' -> i++
+        delimiter -> return i
       }
-      return if (myNumber) StringUtil.naturalCompare(o1ToCompare, o2ToCompare) else o1ToCompare.compareTo(o2ToCompare)
+      i++
     }
+    return -1
   }
 }
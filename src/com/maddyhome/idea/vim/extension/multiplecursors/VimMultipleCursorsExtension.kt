@@ -154,7 +154,7 @@ class VimMultipleCursorsExtension : VimExtension {
       if (caretModel.caretCount > 1) return
 
       val primaryCaret = caretModel.primaryCaret
-      var nextOffset = if (editor.inVisualMode) {
+      val nextOffset = if (editor.inVisualMode) {
         val selectedText = primaryCaret.selectedText ?: return
         val nextOffset = VimPlugin.getSearch().search(editor, selectedText, 1, EnumSet.of(CommandFlags.FLAG_SEARCH_FWD), false)
         nextOffset
@@ -166,17 +166,17 @@ class VimMultipleCursorsExtension : VimExtension {
         findNextOccurrence(editor, primaryCaret, range, whole)
       }
 
-      val firstOffset = primaryCaret.selectionStart
-      val newPositions = arrayListOf(nextOffset, firstOffset)
-      while (nextOffset != firstOffset) {
-        nextOffset = VimPlugin.getSearch().searchNextFromOffset(editor, nextOffset + 1, 1)
-        newPositions += nextOffset
-      }
+      if (nextOffset == -1) return
 
       val pattern = primaryCaret.selectedText ?: return
-      newPositions.sorted().forEach {
-        val caret = caretModel.addCaret(editor.offsetToVisualPosition(it)) ?: return
-        selectWord(caret, pattern, it)
+      val matches = VimPlugin.getSearch().searchAll(editor)
+      // Carets are merged once at the end instead of after adding each of them
+      caretModel.runBatchCaretOperation {
+        for (match in matches) {
+          val offset = match.startOffset
+          val caret = caretModel.addCaret(editor.offsetToVisualPosition(offset)) ?: continue
+          selectWord(caret, pattern, offset)
+        }
       }
     }
   }
@@ -17,9 +17,7 @@
  */
 package com.maddyhome.idea.vim.group;
 
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.intellij.openapi.actionSystem.ActionManager;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.DataContext;
@@ -37,10 +35,8 @@ import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.editor.event.EditorMouseEvent;
 import com.intellij.openapi.editor.event.EditorMouseListener;
 import com.intellij.openapi.editor.ex.EditorEx;
-import com.intellij.openapi.editor.impl.TextRangeInterval;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.codeStyle.CodeStyleManager;
@@ -467,9 +463,24 @@ public class ChangeGroup {
             KeyHandler.executeVimAction(editor, (EditorActionHandlerBase)lastStroke, context);
             strokes.add(lastStroke);
           }
-          else if (lastStroke instanceof char[]) {
-            final char[] chars = (char[])lastStroke;
-            insertText(editor, caret, new String(chars));
+          else if (lastStroke instanceof RepeatMove) {
+            final int delta = ((RepeatMove)lastStroke).delta;
+            final int offset = VimPlugin.getMotion().moveCaretHorizontal(editor, caret, delta, delta > 0);
+            if (offset != -1) {
+              MotionGroup.moveCaret(editor, caret, offset);
+            }
+            strokes.add(lastStroke);
+          }
+          else if (lastStroke instanceof RepeatDelete) {
+            final int offset = caret.getOffset();
+            final int end = Math.min(offset + ((RepeatDelete)lastStroke).count, editor.getDocument().getTextLength());
+            if (end > offset) {
+              editor.getDocument().deleteString(offset, end);
+            }
+            strokes.add(lastStroke);
+          }
+          else if (lastStroke instanceof RepeatInsert) {
+            insertText(editor, caret, ((RepeatInsert)lastStroke).text.toString());
           }
         }
       }
@@ -1783,16 +1794,14 @@ public class ChangeGroup {
   }
 
   /**
-   * Sort range of text with a given comparator
+   * Sort range of text with a given sorter
    *
-   * @param editor         The editor to replace text in
-   * @param range          The range to sort
-   * @param lineComparator The comparator to use to sort
+   * @param editor The editor to replace text in
+   * @param range  The range to sort
+   * @param sorter The sorter to sort the lines with
    * @return true if able to sort the text, false if not
    */
-  public boolean sortRange(@NotNull Editor editor,
-                           @NotNull LineRange range,
-                           @NotNull Comparator<String> lineComparator) {
+  public boolean sortRange(@NotNull Editor editor, @NotNull LineRange range, @NotNull LineSorter sorter) {
     final int startLine = range.startLine;
     final int endLine = range.endLine;
     final int count = endLine - startLine + 1;
@@ -1800,32 +1809,14 @@ public class ChangeGroup {
       return false;
     }
 
-    final int startOffset = editor.getDocument().getLineStartOffset(startLine);
-    final int endOffset = editor.getDocument().getLineEndOffset(endLine);
-
-    return sortTextRange(editor, startOffset, endOffset, lineComparator);
-  }
-
-  /**
-   * Sorts a text range with a comparator. Returns true if a replace was performed, false otherwise.
-   *
-   * @param editor         The editor to replace text in
-   * @param start          The starting position for the sort
-   * @param end            The ending position for the sort
-   * @param lineComparator The comparator to use to sort
-   * @return true if able to sort the text, false if not
-   */
-  private boolean sortTextRange(@NotNull Editor editor,
-                                int start,
-                                int end,
-                                @NotNull Comparator<String> lineComparator) {
-    final String selectedText = editor.getDocument().getText(new TextRangeInterval(start, end));
-    final List<String> lines = Lists.newArrayList(Splitter.on("\n").split(selectedText));
-    if (lines.size() < 1) {
+    final String sorted = sorter.sort(editor, startLine, endLine);
+    if (sorted == null) {
       return false;
     }
-    lines.sort(lineComparator);
-    replaceText(editor, start, end, StringUtil.join(lines, "\n"));
+
+    final int startOffset = editor.getDocument().getLineStartOffset(startLine);
+    final int endOffset = editor.getDocument().getLineEndOffset(endLine);
+    replaceText(editor, startOffset, endOffset, sorted);
     return true;
   }
 
@@ -1990,62 +1981,131 @@ public class ChangeGroup {
 
   private int oldOffset = -1;
 
+  /**
+   * Moves the caret when an insert is repeated, like pressing <Left> or <Right> abs(delta) times
+   */
+  private static final class RepeatMove {
+    private int delta;
+
+    RepeatMove(int delta) {
+      this.delta = delta;
+    }
+  }
+
+  /**
+   * Deletes count characters after the caret when an insert is repeated
+   */
+  private static final class RepeatDelete {
+    private int count;
+
+    RepeatDelete(int count) {
+      this.count = count;
+    }
+  }
+
+  /**
+   * Inserts the text when an insert is repeated
+   */
+  private static final class RepeatInsert {
+    private final @NotNull StringBuilder text = new StringBuilder();
+  }
+
+  /**
+   * Records the changes of an insert, so that the insert can be repeated. Following changes of the same kind are
+   * recorded as one, e.g. the typed characters as one inserted text and a caret jump as one move, so a large insert
+   * is repeated in a few steps
+   */
   private class InsertActionsDocumentListener implements DocumentListener {
+    /**
+     * The last stroke that this listener added. It is only extended while it is still the last stroke, since the
+     * strokes are shared with the repeated insert once the insert is finished
+     */
+    private @Nullable Object lastRecorded;
+
     @Override
     public void documentChanged(@NotNull DocumentEvent e) {
-      final String newFragment = e.getNewFragment().toString();
-      final String oldFragment = e.getOldFragment().toString();
-      final int newFragmentLength = newFragment.length();
-      final int oldFragmentLength = oldFragment.length();
-
       // Repeat buffer limits
       if (repeatCharsCount > MAX_REPEAT_CHARS_COUNT) {
         return;
       }
 
+      final CharSequence newFragment = e.getNewFragment();
+      final int newFragmentLength = e.getNewLength();
+      final int oldFragmentLength = e.getOldLength();
+
       // <Enter> is added to strokes as an action during processing in order to indent code properly in the repeat
       // command
-      if (newFragment.startsWith("\n") && newFragment.trim().isEmpty()) {
-        strokes.addAll(getAdjustCaretActions(e));
+      if (newFragmentLength > 0 && newFragment.charAt(0) == '\n' && isBlank(newFragment)) {
+        recordCaretMove(e);
         oldOffset = -1;
         return;
       }
 
       // Ignore multi-character indents as they should be inserted automatically while repeating <Enter> actions
-      if (!tabAction && newFragmentLength > 1 && newFragment.trim().isEmpty()) {
+      if (!tabAction && newFragmentLength > 1 && isBlank(newFragment)) {
         return;
       }
       tabAction = false;
 
-      strokes.addAll(getAdjustCaretActions(e));
+      recordCaretMove(e);
 
       if (oldFragmentLength > 0) {
-        final AnAction editorDelete = ActionManager.getInstance().getAction("EditorDelete");
-        for (int i = 0; i < oldFragmentLength; i++) {
-          strokes.add(editorDelete);
+        final Object last = getLastRecorded();
+        if (last instanceof RepeatDelete) {
+          ((RepeatDelete)last).count += oldFragmentLength;
+        }
+        else {
+          record(new RepeatDelete(oldFragmentLength));
         }
       }
 
       if (newFragmentLength > 0) {
-        strokes.add(newFragment.toCharArray());
+        final Object last = getLastRecorded();
+        if (last instanceof RepeatInsert) {
+          ((RepeatInsert)last).text.append(newFragment);
+        }
+        else {
+          final RepeatInsert insert = new RepeatInsert();
+          insert.text.append(newFragment);
+          record(insert);
+        }
       }
       repeatCharsCount += newFragmentLength;
       oldOffset = e.getOffset() + newFragmentLength;
     }
 
-    private @NotNull List<EditorActionHandlerBase> getAdjustCaretActions(@NotNull DocumentEvent e) {
+    private void recordCaretMove(@NotNull DocumentEvent e) {
       final int delta = e.getOffset() - oldOffset;
       if (oldOffset >= 0 && delta != 0) {
-        final List<EditorActionHandlerBase> positionCaretActions = new ArrayList<>();
-        final String motionName = delta < 0 ? "VimMotionLeftAction" : "VimMotionRightAction";
-        final EditorActionHandlerBase action = RegisterActions.findAction(motionName);
-        final int count = Math.abs(delta);
-        for (int i = 0; i < count; i++) {
-          positionCaretActions.add(action);
+        final Object last = getLastRecorded();
+        if (last instanceof RepeatMove && Integer.signum(((RepeatMove)last).delta) == Integer.signum(delta)) {
+          ((RepeatMove)last).delta += delta;
+        }
+        else {
+          record(new RepeatMove(delta));
+        }
+      }
+    }
+
+    private void record(@NotNull Object stroke) {
+      strokes.add(stroke);
+      lastRecorded = stroke;
+    }
+
+    private @Nullable Object getLastRecorded() {
+      return !strokes.isEmpty() && strokes.get(strokes.size() - 1) == lastRecorded ? lastRecorded : null;
+    }
+
+    /**
+     * Like {@code text.toString().trim().isEmpty()}, without copying the text
+     */
+    private boolean isBlank(@NotNull CharSequence text) {
+      for (int i = 0; i < text.length(); i++) {
+        if (text.charAt(i) > ' ') {
+          return false;
         }
-        return positionCaretActions;
       }
-      return Collections.emptyList();
+      return true;
     }
   }
 
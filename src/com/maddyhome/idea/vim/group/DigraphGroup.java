@@ -25,10 +25,10 @@ import com.maddyhome.idea.vim.ex.ExOutputModel;
 import com.maddyhome.idea.vim.helper.EditorHelper;
 import com.maddyhome.idea.vim.helper.StringHelper;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 public class DigraphGroup {
   public DigraphGroup() {
@@ -36,21 +36,33 @@ public class DigraphGroup {
   }
 
   public char getDigraph(char ch1, char ch2) {
-    String key = new String(new char[]{ch1, ch2});
-    Character ch = digraphs.get(key);
-    if (ch == null) {
-      key = new String(new char[]{ch2, ch1});
-      ch = digraphs.get(key);
+    int index = findDigraph(ch1, ch2);
+    if (index == -1) {
+      index = findDigraph(ch2, ch1);
     }
 
-    if (ch == null) {
+    if (index == -1) {
       return ch2;
     }
     else {
-      return ch;
+      return digraphChars[index];
     }
   }
 
+  /**
+   * @return The index of the digraph in the table, or -1 if there is none
+   */
+  private int findDigraph(char ch1, char ch2) {
+    final int key = digraphKey(ch1, ch2);
+    final int mask = digraphKeys.length - 1;
+    for (int i = digraphSlot(key, mask); digraphKeys[i] != 0; i = (i + 1) & mask) {
+      if (digraphKeys[i] == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   @SuppressWarnings("GrazieInspection")
   public void displayAsciiInfo(@NotNull Editor editor) {
     int offset = editor.getCaretModel().getOffset();
@@ -58,7 +70,7 @@ public class DigraphGroup {
     if (charsSequence.length() == 0 || offset >= charsSequence.length()) return;
     char ch = charsSequence.charAt(offset);
 
-    final String digraph = keys.get(ch);
+    final String digraph = getDigraphKeys(ch);
     final String digraphText = digraph == null ? "" : ", Digr " + digraph;
 
     if (ch < 0x100) {
@@ -87,7 +99,7 @@ public class DigraphGroup {
       width = 80;
     }
     int colCount = width / 12;
-    int height = (int)Math.ceil((double)digraphs.size() / (double)colCount);
+    int height = (int)Math.ceil((double)digraphCount / (double)colCount);
 
     if (logger.isDebugEnabled()) {
       logger.debug("width=" + width);
@@ -97,10 +109,11 @@ public class DigraphGroup {
 
     StringBuilder res = new StringBuilder();
     int cnt = 0;
-    for (Character code : keys.keySet()) {
-      String key = keys.get(code);
+    for (int i = 0; i < codes.length; i++) {
+      final char code = codes[i];
 
-      res.append(key);
+      res.append(codeKeys[2 * i]);
+      res.append(codeKeys[2 * i + 1]);
       res.append(' ');
       if (code < 32) {
         res.append('^');
@@ -137,19 +150,86 @@ public class DigraphGroup {
     ExOutputModel.getInstance(editor).output(res.toString());
   }
 
+  /**
+   * @return The keys of the digraph for the character, or null if there is none
+   */
+  private @Nullable String getDigraphKeys(char ch) {
+    final int index = Arrays.binarySearch(codes, ch);
+    return index < 0 ? null : new String(codeKeys, 2 * index, 2);
+  }
+
+  /**
+   * Loads the digraphs into two tables. A digraph is found by its keys in an open addressing hash table, with the two
+   * keys packed into an int. The keys of a character are found by a binary search in the sorted characters. Neither
+   * lookup allocates. Like for a map, a later digraph with the same keys, or for the same character, replaces an
+   * earlier one.
+   */
   private void loadDigraphs() {
+    int count = 0;
     for (int i = 0; i < defaultDigraphs.length; i += 3) {
       if (defaultDigraphs[i] != '\0' && defaultDigraphs[i + 1] != '\0') {
-        char ch = defaultDigraphs[i + 2];
-        String key = new String(new char[]{defaultDigraphs[i], defaultDigraphs[i + 1]});
-        digraphs.put(key, ch);
-        keys.put(ch, key);
+        count++;
+      }
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+    digraphKeys = new int[capacity];
+    digraphChars = new char[capacity];
+    final long[] byCode = new long[count];
+    int n = 0;
+    for (int i = 0; i < defaultDigraphs.length; i += 3) {
+      if (defaultDigraphs[i] != '\0' && defaultDigraphs[i + 1] != '\0') {
+        final char ch = defaultDigraphs[i + 2];
+        addDigraph(digraphKey(defaultDigraphs[i], defaultDigraphs[i + 1]), ch);
+        byCode[n++] = ((long)ch << 32) | i;
+      }
+    }
+
+    // Sorted by character and then by position, so the last digraph of a character is the last of its run
+    Arrays.sort(byCode);
+    int codeCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (i + 1 == count || byCode[i + 1] >>> 32 != byCode[i] >>> 32) {
+        codeCount++;
+      }
+    }
+    codes = new char[codeCount];
+    codeKeys = new char[codeCount * 2];
+    int c = 0;
+    for (int i = 0; i < count; i++) {
+      if (i + 1 == count || byCode[i + 1] >>> 32 != byCode[i] >>> 32) {
+        final int pos = (int)byCode[i];
+        codes[c] = defaultDigraphs[pos + 2];
+        codeKeys[2 * c] = defaultDigraphs[pos];
+        codeKeys[2 * c + 1] = defaultDigraphs[pos + 1];
+        c++;
       }
     }
 
     // TODO - load custom digraphs from .ideavimrc
   }
 
+  private void addDigraph(int key, char ch) {
+    final int mask = digraphKeys.length - 1;
+    int i = digraphSlot(key, mask);
+    while (digraphKeys[i] != 0 && digraphKeys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (digraphKeys[i] == 0) {
+      digraphKeys[i] = key;
+      digraphCount++;
+    }
+    digraphChars[i] = ch;
+  }
+
+  private static int digraphKey(char ch1, char ch2) {
+    return (ch1 << 16) | ch2;
+  }
+
+  private static int digraphSlot(int key, int mask) {
+    return (key * 0x9E3779B9 >>> 16) & mask;
+  }
+
   private static final char[] defaultDigraphs = {
     /*
     'N', 'U', // 0   ^@
@@ -1748,8 +1828,20 @@ public class DigraphGroup {
     'f', 't', '\ufb05', // LATIN SMALL LIGATURE FT
     's', 't', '\ufb06', // LATIN SMALL LIGATURE ST
   };
-  private final @NotNull HashMap<String, Character> digraphs = new HashMap<>(defaultDigraphs.length);
-  private final @NotNull TreeMap<Character, String> keys = new TreeMap<>();
+  /**
+   * The keys of the digraphs, packed by {@link #digraphKey(char, char)}, or 0 for an empty slot
+   */
+  private int[] digraphKeys;
+  private char[] digraphChars;
+  private int digraphCount;
+  /**
+   * The characters that have digraphs, in ascending order
+   */
+  private char[] codes;
+  /**
+   * The two keys of the digraph of each of the codes
+   */
+  private char[] codeKeys;
 
   private static final Logger logger = Logger.getInstance(DigraphGroup.class.getName());
 }
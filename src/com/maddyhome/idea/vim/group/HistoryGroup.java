@@ -30,10 +30,7 @@ import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 @State(name = "VimHistorySettings", storages = {
   @Storage(value = "$APP_CONFIG$/vim_settings.xml", roamingType = RoamingType.DISABLED)
@@ -56,23 +53,21 @@ public class HistoryGroup implements PersistentStateComponent<Element> {
   public @NotNull List<HistoryEntry> getEntries(String key, int first, int last) {
     HistoryBlock block = blocks(key);
 
-    List<HistoryEntry> entries = block.getEntries();
-    List<HistoryEntry> res = new ArrayList<>();
     if (first < 0) {
-      if (-first > entries.size()) {
+      if (-first > block.size()) {
         first = Integer.MAX_VALUE;
       }
       else {
-        HistoryEntry entry = entries.get(entries.size() + first);
+        HistoryEntry entry = block.get(block.size() + first);
         first = entry.getNumber();
       }
     }
     if (last < 0) {
-      if (-last > entries.size()) {
+      if (-last > block.size()) {
         last = Integer.MIN_VALUE;
       }
       else {
-        HistoryEntry entry = entries.get(entries.size() + last);
+        HistoryEntry entry = block.get(block.size() + last);
         last = entry.getNumber();
       }
     }
@@ -85,13 +80,18 @@ public class HistoryGroup implements PersistentStateComponent<Element> {
       logger.debug("last=" + last);
     }
 
-    for (HistoryEntry entry : entries) {
-      if (entry.getNumber() >= first && entry.getNumber() <= last) {
-        res.add(entry);
-      }
-    }
+    return block.getEntries(first, last);
+  }
 
-    return res;
+  /**
+   * Finds the nearest entry before or after the entry with the number whose text starts with the prefix
+   *
+   * @param number    The number of the entry to start from, it doesn't have to exist
+   * @param backwards Whether to find an older entry instead of a newer one
+   * @return The entry, or null if there is none
+   */
+  public @Nullable HistoryEntry findEntry(String key, @NotNull String prefix, int number, boolean backwards) {
+    return blocks(key).findEntry(prefix, number, backwards);
   }
 
   private HistoryBlock blocks(String key) {
@@ -124,7 +124,7 @@ public class HistoryGroup implements PersistentStateComponent<Element> {
 
     final Element root = new Element("history-" + key);
 
-    for (HistoryEntry entry : block.getEntries()) {
+    for (HistoryEntry entry : block.getEntries(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
       final Element entryElement = new Element("entry");
       StringHelper.setSafeXmlText(entryElement, entry.getEntry());
       root.addContent(entryElement);
@@ -187,28 +187,119 @@ public class HistoryGroup implements PersistentStateComponent<Element> {
     readData(state);
   }
 
+  /**
+   * The entries of a history, oldest first, in a ring buffer that grows up to the length of the history. The numbers of
+   * the entries increase, but have gaps where an entry was added again, so an entry is found by its number with a
+   * binary search. The entries are also sorted by their text, which is unique in a history, to find the entries with a
+   * prefix.
+   */
   private static class HistoryBlock {
     public void addEntry(@NotNull String text) {
-      for (int i = 0; i < entries.size(); i++) {
-        HistoryEntry entry = entries.get(i);
-        if (text.equals(entry.getEntry())) {
-          entries.remove(i);
+      final HistoryEntry old = byText.remove(text);
+      if (old != null) {
+        remove(indexOf(old.getNumber()));
+      }
+
+      final HistoryEntry entry = new HistoryEntry(++counter, text);
+      if (size == entries.length) {
+        grow();
+      }
+      entries[(head + size) & (entries.length - 1)] = entry;
+      size++;
+      byText.put(text, entry);
+
+      final int max = maxLength();
+      while (size > max) {
+        byText.remove(entries[head].getEntry());
+        entries[head] = null;
+        head = (head + 1) & (entries.length - 1);
+        size--;
+      }
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public @NotNull HistoryEntry get(int index) {
+      return entries[(head + index) & (entries.length - 1)];
+    }
+
+    /**
+     * @return The entries with numbers from first to last
+     */
+    public @NotNull List<HistoryEntry> getEntries(int first, int last) {
+      final int from = indexOf(first);
+      final int to = last == Integer.MAX_VALUE ? size : indexOf(last + 1);
+      final List<HistoryEntry> res = new ArrayList<>(Math.max(to - from, 0));
+      for (int i = from; i < to; i++) {
+        res.add(get(i));
+      }
+      return res;
+    }
+
+    public @Nullable HistoryEntry findEntry(@NotNull String prefix, int number, boolean backwards) {
+      if (prefix.isEmpty()) {
+        final int index = backwards ? indexOf(number) - 1 : indexOf(number == Integer.MAX_VALUE ? number : number + 1);
+        return index >= 0 && index < size ? get(index) : null;
+      }
+
+      HistoryEntry res = null;
+      for (Map.Entry<String, HistoryEntry> candidate : byText.tailMap(prefix).entrySet()) {
+        if (!candidate.getKey().startsWith(prefix)) {
           break;
         }
+        final HistoryEntry entry = candidate.getValue();
+        if (backwards
+            ? entry.getNumber() < number && (res == null || entry.getNumber() > res.getNumber())
+            : entry.getNumber() > number && (res == null || entry.getNumber() < res.getNumber())) {
+          res = entry;
+        }
       }
+      return res;
+    }
 
-      entries.add(new HistoryEntry(++counter, text));
+    /**
+     * @return The index of the first entry with a number that isn't smaller than the number, or the size if there is
+     * none
+     */
+    private int indexOf(int number) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (get(mid).getNumber() < number) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      return low;
+    }
 
-      if (entries.size() > maxLength()) {
-        entries.remove(0);
+    private void remove(int index) {
+      final int mask = entries.length - 1;
+      for (int i = index; i < size - 1; i++) {
+        entries[(head + i) & mask] = entries[(head + i + 1) & mask];
       }
+      entries[(head + size - 1) & mask] = null;
+      size--;
     }
 
-    public @NotNull List<HistoryEntry> getEntries() {
-      return entries;
+    private void grow() {
+      final HistoryEntry[] res = new HistoryEntry[entries.length * 2];
+      for (int i = 0; i < size; i++) {
+        res[i] = get(i);
+      }
+      entries = res;
+      head = 0;
     }
 
-    private final @NotNull List<HistoryEntry> entries = new ArrayList<>();
+    private HistoryEntry[] entries = new HistoryEntry[16];
+    private int head;
+    private int size;
+    private final @NotNull TreeMap<String, HistoryEntry> byText = new TreeMap<>();
     private int counter;
   }
 
@@ -0,0 +1,208 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.group;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.text.CharArrayUtil;
+import com.maddyhome.idea.vim.helper.EditorHelper;
+import com.maddyhome.idea.vim.regexp.RegExp;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorts lines for :sort.
+ *
+ * The lines aren't split into strings. The text of the lines is copied once and every line is a range of it, which
+ * is compared directly. When the lines are compared by something else than their text, e.g. ignoring case, the key
+ * of each line is computed once before sorting. The line numbers are sorted with {@link Arrays#parallelSort}, which
+ * sorts a large range on several threads and is stable like the sort of a list.
+ */
+public class LineSorter {
+  private final boolean ignoreCase;
+  private final boolean number;
+  private final boolean reverse;
+  private final boolean unique;
+  private final @Nullable String pattern;
+  private final boolean sortOnMatch;
+
+  /**
+   * @param ignoreCase  Ignore the case of letters (i)
+   * @param number      Compare numbers in the lines by their value (n)
+   * @param reverse     Sort in reverse order (!)
+   * @param unique      Keep only the first of equal lines (u)
+   * @param pattern     Sort on what comes after the match of the pattern, or null to sort on the whole line
+   * @param sortOnMatch Sort on the match of the pattern instead (r)
+   */
+  public LineSorter(boolean ignoreCase,
+                    boolean number,
+                    boolean reverse,
+                    boolean unique,
+                    @Nullable String pattern,
+                    boolean sortOnMatch) {
+    this.ignoreCase = ignoreCase;
+    this.number = number;
+    this.reverse = reverse;
+    this.unique = unique;
+    this.pattern = pattern;
+    this.sortOnMatch = sortOnMatch;
+  }
+
+  /**
+   * Sorts the lines from startLine to endLine
+   *
+   * @return The sorted lines, joined by new lines, or null if the pattern is invalid
+   */
+  public @Nullable String sort(@NotNull Editor editor, int startLine, int endLine) {
+    final Document document = editor.getDocument();
+    final int rangeStart = document.getLineStartOffset(startLine);
+    final char[] text = CharArrayUtil.fromSequence(document.getCharsSequence(), rangeStart,
+                                                   document.getLineEndOffset(endLine));
+
+    final int count = endLine - startLine + 1;
+    final int[] starts = new int[count];
+    final int[] ends = new int[count];
+    for (int i = 0; i < count; i++) {
+      starts[i] = document.getLineStartOffset(startLine + i) - rangeStart;
+      ends[i] = document.getLineEndOffset(startLine + i) - rangeStart;
+    }
+
+    final int[] keyStarts;
+    final int[] keyEnds;
+    if (pattern != null) {
+      keyStarts = new int[count];
+      keyEnds = new int[count];
+      if (!findKeys(editor, startLine, starts, ends, keyStarts, keyEnds)) {
+        return null;
+      }
+    }
+    else {
+      keyStarts = starts;
+      keyEnds = ends;
+    }
+
+    Comparator<Integer> comparator;
+    if (ignoreCase || number) {
+      final String[] keys = new String[count];
+      for (int i = 0; i < count; i++) {
+        final String key = new String(text, keyStarts[i], keyEnds[i] - keyStarts[i]);
+        keys[i] = ignoreCase ? key.toUpperCase() : key;
+      }
+      comparator = number ? (a, b) -> StringUtil.naturalCompare(keys[a], keys[b]) : (a, b) -> keys[a].compareTo(keys[b]);
+    }
+    else {
+      comparator = (a, b) -> compare(text, keyStarts[a], keyEnds[a], keyStarts[b], keyEnds[b]);
+    }
+    if (reverse) {
+      comparator = comparator.reversed();
+    }
+
+    final Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.parallelSort(order, comparator);
+
+    final StringBuilder res = new StringBuilder(text.length);
+    int previous = -1;
+    for (int line : order) {
+      if (unique && previous != -1 && equal(text, starts[previous], ends[previous], starts[line], ends[line])) {
+        continue;
+      }
+      if (previous != -1) {
+        res.append('\n');
+      }
+      res.append(text, starts[line], ends[line] - starts[line]);
+      previous = line;
+    }
+
+    return res.toString();
+  }
+
+  /**
+   * Finds the part of each line to sort on. A line without a match of the pattern is sorted on an empty key, so such
+   * lines are kept in their order before the other lines, like in Vim.
+   *
+   * @return False if the pattern is invalid
+   */
+  private boolean findKeys(@NotNull Editor editor,
+                           int startLine,
+                           int[] starts,
+                           int[] ends,
+                           int[] keyStarts,
+                           int[] keyEnds) {
+    final RegExp regExp = new RegExp();
+    final RegExp.regmmatch_T regMatch = new RegExp.regmmatch_T();
+    regMatch.regprog = regExp.vim_regcomp(pattern, 1);
+    if (regMatch.regprog == null) {
+      return false;
+    }
+    regMatch.rmm_ic = SearchGroup.shouldIgnoreCase(pattern, false);
+
+    final int lineCount = EditorHelper.getLineCount(editor);
+    for (int i = 0; i < starts.length; i++) {
+      if (regExp.vim_regexec_multi(regMatch, editor, lineCount, startLine + i, 0) > 0 &&
+          regMatch.startpos[0].lnum == 0) {
+        final int matchStart = starts[i] + regMatch.startpos[0].col;
+        final int matchEnd = regMatch.endpos[0].lnum == 0 ? starts[i] + regMatch.endpos[0].col : ends[i];
+        keyStarts[i] = sortOnMatch ? matchStart : matchEnd;
+        keyEnds[i] = sortOnMatch ? matchEnd : ends[i];
+      }
+      else {
+        keyStarts[i] = starts[i];
+        keyEnds[i] = starts[i];
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Compares two ranges of the text like {@link String#compareTo}
+   */
+  private static int compare(char[] text, int start1, int end1, int start2, int end2) {
+    final int len1 = end1 - start1;
+    final int len2 = end2 - start2;
+    final int len = Math.min(len1, len2);
+    for (int i = 0; i < len; i++) {
+      final char c1 = text[start1 + i];
+      final char c2 = text[start2 + i];
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+    return len1 - len2;
+  }
+
+  private boolean equal(char[] text, int start1, int end1, int start2, int end2) {
+    if (end1 - start1 != end2 - start2) {
+      return false;
+    }
+    for (int i = 0; i < end1 - start1; i++) {
+      if (!StringUtil.charsMatch(text[start1 + i], text[start2 + i], ignoreCase)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
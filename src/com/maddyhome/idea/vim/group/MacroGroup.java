@@ -20,6 +20,7 @@ package com.maddyhome.idea.vim.group;
 
 import com.intellij.openapi.actionSystem.DataContext;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.command.CommandProcessor;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Editor;
@@ -27,6 +28,7 @@ import com.intellij.openapi.project.Project;
 import com.maddyhome.idea.vim.KeyHandler;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.common.Register;
+import com.maddyhome.idea.vim.ui.ExEntryPanel;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -80,7 +82,7 @@ public class MacroGroup {
   }
 
   /**
-   * This puts a single keystroke at the end of the event queue for playback
+   * This puts the playback of the keys at the end of the event queue
    *
    * @param editor  The editor to play the key in
    * @param context The data context
@@ -92,39 +94,105 @@ public class MacroGroup {
    */
   public void playbackKeys(final @NotNull Editor editor, final @NotNull DataContext context, final @Nullable Project project,
                            final @NotNull List<KeyStroke> keys, final int pos, final int cnt, final int total) {
+    // Each playback is its own undo step, even when the same keys are played back again right after it. Only the
+    // parts of this playback that are queued later are merged with it. A playback started by a key of another
+    // playback, e.g. "@b" in register a, is part of that playback and continues it when it's done
+    final Runnable onFinished = pendingRest;
+    final Object undoGroup = pendingUndoGroup != null ? pendingUndoGroup : new Object();
+    pendingRest = null;
+    pendingUndoGroup = null;
+    playbackKeys(editor, context, project, keys, pos, cnt, total, ModalityState.current(), undoGroup, onFinished);
+  }
+
+  private void playbackKeys(final @NotNull Editor editor, final @NotNull DataContext context, final @Nullable Project project,
+                            final @NotNull List<KeyStroke> keys, final int pos, final int cnt, final int total,
+                            final @NotNull ModalityState modalityState, final @NotNull Object undoGroup,
+                            final @Nullable Runnable onFinished) {
     if (logger.isDebugEnabled()) {
       logger.debug("playbackKeys " + pos);
     }
     if (pos >= keys.size() || cnt >= total) {
       logger.debug("done");
+      if (onFinished != null) {
+        onFinished.run();
+      }
 
       return;
     }
 
     // This took a while to get just right. The original approach has a loop that made a runnable for each
     // character. It worked except for one case - if the macro had a complete ex command, the editor did not
-    // end up with the focus and I couldn't find anyway to get it to have focus. This approach was the only
-    // solution. This makes the most sense now (of course it took hours of trial and error to come up with
-    // this one). Each key gets added, one at a time, to the event queue. If a given key results in other
-    // events getting queued, they get queued before the next key, just what would happen if the user was typing
-    // the keys one at a time. With the old loop approach, all the keys got queued, then any events they caused
-    // were queued - after the keys. This is what caused the problem.
+    // end up with the focus and I couldn't find anyway to get it to have focus. With the old loop approach, all the
+    // keys got queued, then any events they caused were queued - after the keys. This is what caused the problem.
+    // Queueing each key on its own fixed it, but a long playback then runs thousands of events and commands.
+    // Now the keys are handled one after the other in a single event until a key opens or closes some UI, e.g. the ex
+    // entry. Then the rest of the keys are queued, so the events caused by the UI are handled before the next key, just
+    // what would happen if the user was typing the keys one at a time. A key that starts another playback hands the
+    // rest of the keys over to it, so they are played back after the keys of the other playback. The keys always form
+    // a single command, so the playback is undone in one step.
     final Runnable run = () -> {
-      if (logger.isDebugEnabled()) {
-        logger.debug("processing key " + pos);
+      if (editor.isDisposed()) {
+        return;
       }
-      // Handle one keystroke then queue up the next key
-      KeyHandler.getInstance().handleKey(editor, keys.get(pos), context);
-      if (pos < keys.size() - 1) {
-        playbackKeys(editor, context, project, keys, pos + 1, cnt, total);
-      }
-      else {
-        playbackKeys(editor, context, project, keys, 0, cnt + 1, total);
+
+      int i = pos;
+      int c = cnt;
+      while (true) {
+        if (logger.isDebugEnabled()) {
+          logger.debug("processing key " + i);
+        }
+        final KeyStroke key = keys.get(i);
+        if (i < keys.size() - 1) {
+          i++;
+        }
+        else {
+          i = 0;
+          c++;
+        }
+
+        final int nextPos = i;
+        final int nextCnt = c;
+        final Runnable rest =
+          () -> playbackKeys(editor, context, project, keys, nextPos, nextCnt, total, modalityState, undoGroup, onFinished);
+        final boolean showedUi = isShowingUi(modalityState);
+        final boolean startedPlayback;
+        pendingRest = rest;
+        pendingUndoGroup = undoGroup;
+        try {
+          KeyHandler.getInstance().handleKey(editor, key, context);
+        }
+        finally {
+          startedPlayback = pendingRest != rest;
+          pendingRest = null;
+          pendingUndoGroup = null;
+        }
+
+        if (startedPlayback) {
+          return;
+        }
+        if (c >= total) {
+          logger.debug("done");
+          if (onFinished != null) {
+            onFinished.run();
+          }
+          return;
+        }
+        if (showedUi || isShowingUi(modalityState)) {
+          rest.run();
+          return;
+        }
       }
     };
 
     ApplicationManager.getApplication().invokeLater(
-        () -> CommandProcessor.getInstance().executeCommand(project, run, "Vim Macro Playback", keys.get(pos)));
+        () -> CommandProcessor.getInstance().executeCommand(project, run, "Vim Macro Playback", undoGroup));
+  }
+
+  /**
+   * True if UI is showing that handles the next keys or causes events that must be handled before them
+   */
+  private static boolean isShowingUi(@NotNull ModalityState modalityState) {
+    return ExEntryPanel.getInstance().isActive() || ModalityState.current().dominates(modalityState);
   }
 
   public void postKey(@NotNull KeyStroke stroke, @NotNull Editor editor) {
@@ -145,5 +213,11 @@ public class MacroGroup {
   }
 
   private char lastRegister = 0;
+  /**
+   * The rest of the playback whose key is being handled, and its undo group. A playback started by the key takes them
+   * over
+   */
+  private @Nullable Runnable pendingRest = null;
+  private @Nullable Object pendingUndoGroup = null;
   private static final Logger logger = Logger.getInstance(MacroGroup.class.getName());
 }
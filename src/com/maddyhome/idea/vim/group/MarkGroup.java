@@ -53,7 +53,6 @@ import org.jetbrains.annotations.Nullable;
 
 import java.lang.ref.WeakReference;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * This class contains all the mark related functionality
@@ -347,7 +346,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
   public @NotNull List<Mark> getMarks(@NotNull Editor editor) {
     HashSet<Mark> res = new HashSet<>();
 
-    final FileMarks<Character, Mark> marks = getFileMarks(editor.getDocument());
+    final FileMarks marks = getFileMarks(editor.getDocument());
     if (marks != null) {
       res.addAll(marks.values());
     }
@@ -375,7 +374,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
    * @return The map of marks. The keys are <code>Character</code>s of the mark names, the values are
    *         <code>Mark</code>s.
    */
-  private @Nullable FileMarks<Character, Mark> getFileMarks(final @NotNull Document doc) {
+  private @Nullable FileMarks getFileMarks(final @NotNull Document doc) {
     VirtualFile vf = FileDocumentManager.getInstance().getFile(doc);
     if (vf == null) {
       return null;
@@ -384,28 +383,6 @@ public class MarkGroup implements PersistentStateComponent<Element> {
     return getFileMarks(vf.getPath());
   }
 
-  private @Nullable HashMap<Character, Mark> getAllFileMarks(final @NotNull Document doc) {
-    VirtualFile vf = FileDocumentManager.getInstance().getFile(doc);
-    if (vf == null) {
-      return null;
-    }
-
-    HashMap<Character, Mark> res = new HashMap<>();
-    FileMarks<Character, Mark> fileMarks = getFileMarks(doc);
-    if (fileMarks != null) {
-      res.putAll(fileMarks);
-    }
-
-    for (Character ch : globalMarks.keySet()) {
-      Mark mark = globalMarks.get(ch);
-      if (vf.getPath().equals(mark.getFilename())) {
-        res.put(ch, mark);
-      }
-    }
-
-    return res;
-  }
-
   /**
    * Gets the map of marks for the specified file
    *
@@ -413,10 +390,10 @@ public class MarkGroup implements PersistentStateComponent<Element> {
    * @return The map of marks. The keys are <code>Character</code>s of the mark names, the values are
    *         <code>Mark</code>s.
    */
-  private FileMarks<Character, Mark> getFileMarks(String filename) {
-    FileMarks<Character, Mark> marks = fileMarks.get(filename);
+  private FileMarks getFileMarks(String filename) {
+    FileMarks marks = fileMarks.get(filename);
     if (marks == null) {
-      marks = new FileMarks<>();
+      marks = new FileMarks();
       fileMarks.put(filename, marks);
     }
 
@@ -445,7 +422,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
 
     Element fileMarksElem = new Element("filemarks");
 
-    List<FileMarks<Character, Mark>> files = new ArrayList<>(fileMarks.values());
+    List<FileMarks> files = new ArrayList<>(fileMarks.values());
     files.sort(Comparator.comparing(o -> o.timestamp));
 
     if (files.size() > SAVE_MARK_COUNT) {
@@ -453,7 +430,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
     }
 
     for (String file : fileMarks.keySet()) {
-      FileMarks<Character, Mark> marks = fileMarks.get(file);
+      FileMarks marks = fileMarks.get(file);
       if (!files.contains(marks)) {
         continue;
       }
@@ -534,7 +511,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
         catch (NumberFormatException e) {
           // ignore
         }
-        FileMarks<Character, Mark> fmarks = getFileMarks(filename);
+        FileMarks fmarks = getFileMarks(filename);
         List markList = fileElem.getChildren("mark");
         for (Object aMarkList : markList) {
           Element markElem = (Element)aMarkList;
@@ -583,31 +560,35 @@ public class MarkGroup implements PersistentStateComponent<Element> {
    * @param delStartOff The offset within the editor where the deletion occurred
    * @param delLength   The length of the deleted text
    */
-  public static void updateMarkFromDelete(@Nullable Editor editor, @Nullable HashMap<Character, Mark> marks, int delStartOff, int delLength) {
+  private static void updateMarkFromDelete(@Nullable Editor editor, @Nullable FileMarks marks, int delStartOff, int delLength) {
     // Skip all this work if there are no marks
     if (marks != null && marks.size() > 0 && editor != null) {
-      // Calculate the logical position of the start and end of the deleted text
+      // Calculate the line of the start and end of the deleted text
+      final Document doc = editor.getDocument();
       int delEndOff = delStartOff + delLength - 1;
-      LogicalPosition delStart = editor.offsetToLogicalPosition(delStartOff);
-      LogicalPosition delEnd = editor.offsetToLogicalPosition(delEndOff + 1);
-      if (logger.isDebugEnabled()) logger.debug("mark delete. delStart = " + delStart + ", delEnd = " + delEnd);
+      int delStartLine = doc.getLineNumber(delStartOff);
+      final VimMark[] byLine = marks.getMarksByLine();
+      int first = firstMarkAfter(byLine, delStartLine - 1);
+      // Nothing to do if all the marks are before the deleted text
+      if (first == byLine.length) return;
+
+      int delEndLine = doc.getLineNumber(delEndOff + 1);
+      if (logger.isDebugEnabled()) logger.debug("mark delete. delStart = " + delStartLine + ", delEnd = " + delEndLine);
 
-      // Now analyze each mark to determine if it needs to be updated or removed
-      for (Character ch : marks.keySet()) {
-        Mark myMark = marks.get(ch);
-        if (!(myMark instanceof VimMark)) continue;
-        VimMark mark = (VimMark) myMark;
+      // Now analyze each mark that is not before the deleted text to determine if it needs to be updated or removed
+      for (int i = first; i < byLine.length; i++) {
+        VimMark mark = byLine[i];
 
         if (logger.isDebugEnabled()) logger.debug("mark = " + mark);
         // If the end of the deleted text is prior to the marked line, simply shift the mark up by the
         // proper number of lines.
-        if (delEnd.line < mark.getLogicalLine()) {
-          int lines = delEnd.line - delStart.line;
+        if (delEndLine < mark.getLogicalLine()) {
+          int lines = delEndLine - delStartLine;
           if (logger.isDebugEnabled()) logger.debug("Shifting mark by " + lines + " lines");
           mark.setLogicalLine(mark.getLogicalLine() - lines);
         }
         // If the deleted text begins before the mark and ends after the mark then it may be shifted or deleted
-        else if (delStart.line <= mark.getLogicalLine() && delEnd.line >= mark.getLogicalLine()) {
+        else {
           int markLineStartOff = EditorHelper.getLineStartOffset(editor, mark.getLogicalLine());
           int markLineEndOff = EditorHelper.getLineEndOffset(editor, mark.getLogicalLine(), true);
 
@@ -617,15 +598,15 @@ public class MarkGroup implements PersistentStateComponent<Element> {
                                             && delStartOff == markLineStartOff;
           // If the marked line is completely within the deleted text, remove the mark (except the special case)
           if (delStartOff <= markLineStartOff && delEndOff >= markLineEndOff && !changeFromMarkLineStart) {
-            VimPlugin.getMark().removeMark(ch, mark);
+            VimPlugin.getMark().removeMark(mark.getKey(), mark);
             logger.debug("Removed mark");
           }
           // The deletion only covers part of the marked line so shift the mark only if the deletion begins
           // on a line prior to the marked line (which means the deletion must end on the marked line).
-          else if (delStart.line < mark.getLogicalLine()) {
+          else if (delStartLine < mark.getLogicalLine()) {
             // shift mark
-            mark.setLogicalLine(delStart.line);
-            if (logger.isDebugEnabled()) logger.debug("Shifting mark to line " + delStart.line);
+            mark.setLogicalLine(delStartLine);
+            if (logger.isDebugEnabled()) logger.debug("Shifting mark to line " + delStartLine);
           }
         }
       }
@@ -641,24 +622,80 @@ public class MarkGroup implements PersistentStateComponent<Element> {
    * @param insStartOff The insertion point
    * @param insLength   The length of the insertion
    */
-  public static void updateMarkFromInsert(@Nullable Editor editor, @Nullable HashMap<Character, Mark> marks, int insStartOff, int insLength) {
+  private static void updateMarkFromInsert(@Nullable Editor editor, @Nullable FileMarks marks, int insStartOff, int insLength) {
     if (marks != null && marks.size() > 0 && editor != null) {
+      final Document doc = editor.getDocument();
       int insEndOff = insStartOff + insLength;
-      LogicalPosition insStart = editor.offsetToLogicalPosition(insStartOff);
-      LogicalPosition insEnd = editor.offsetToLogicalPosition(insEndOff);
-      if (logger.isDebugEnabled()) logger.debug("mark insert. insStart = " + insStart + ", insEnd = " + insEnd);
-      int lines = insEnd.line - insStart.line;
-      if (lines == 0) return;
+      int insStartLine = doc.getLineNumber(insStartOff);
+      int insEndLine = doc.getLineNumber(insEndOff);
+      if (logger.isDebugEnabled()) logger.debug("mark insert. insStart = " + insStartLine + ", insEnd = " + insEndLine);
 
-      for (VimMark mark : marks.values().stream().filter(VimMark.class::isInstance).map(VimMark.class::cast).collect(Collectors.toList())) {
-        if (logger.isDebugEnabled()) logger.debug("mark = " + mark);
-        // Shift the mark if the insertion began on a line prior to the marked line.
-        if (insStart.line < mark.getLogicalLine()) {
-          mark.setLogicalLine(mark.getLogicalLine() + lines);
-          if (logger.isDebugEnabled()) logger.debug("Shifting mark by " + lines + " lines");
-        }
+      shiftMarks(marks.getMarksByLine(), insStartLine, insEndLine - insStartLine);
+    }
+  }
+
+  /**
+   * This updates all the marks for a file before several ranges of the text are replaced without the
+   * {@link MarkUpdater}, e.g. by a substitute. The marks are updated as if each range was replaced on its own.
+   *
+   * @param editor The modified editor
+   * @param ranges The ranges to replace, in order
+   * @param texts  The new text of each range
+   */
+  public void updateMarksFromReplace(@NotNull Editor editor, @NotNull List<TextRange> ranges, @NotNull List<String> texts) {
+    FileMarks marks = getFileMarks(editor.getDocument());
+    if (marks == null || marks.isEmpty()) return;
+
+    // The offsets of a range are still valid after the marks are updated for the ranges that follow it
+    for (int i = ranges.size() - 1; i >= 0; i--) {
+      TextRange range = ranges.get(i);
+      if (range.getEndOffset() > range.getStartOffset()) {
+        updateMarkFromDelete(editor, marks, range.getStartOffset(), range.getEndOffset() - range.getStartOffset());
+      }
+
+      int lines = StringUtil.countNewLines(texts.get(i));
+      if (lines > 0) {
+        shiftMarks(marks.getMarksByLine(), editor.getDocument().getLineNumber(range.getStartOffset()), lines);
+      }
+    }
+  }
+
+  /**
+   * Moves the marks after the given line down by the given number of lines
+   *
+   * @param byLine The marks sorted by line
+   * @param line   The line where the lines were inserted
+   * @param lines  The number of inserted lines
+   */
+  private static void shiftMarks(@NotNull VimMark[] byLine, int line, int lines) {
+    if (lines == 0) return;
+
+    // Shift the marks if the insertion began on a line prior to the marked line.
+    for (int i = firstMarkAfter(byLine, line); i < byLine.length; i++) {
+      VimMark mark = byLine[i];
+      if (logger.isDebugEnabled()) logger.debug("mark = " + mark + ", shifting by " + lines + " lines");
+      mark.setLogicalLine(mark.getLogicalLine() + lines);
+    }
+  }
+
+  /**
+   * Finds the first of the marks sorted by line that is after the given line
+   *
+   * @return The index of the mark, or the number of marks if all of them are at or before the line
+   */
+  private static int firstMarkAfter(@NotNull VimMark[] byLine, int line) {
+    int low = 0;
+    int high = byLine.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (byLine[mid].getLogicalLine() <= line) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
       }
     }
+    return low;
   }
 
   @Nullable
@@ -674,18 +711,61 @@ public class MarkGroup implements PersistentStateComponent<Element> {
     readData(state);
   }
 
-  private static class FileMarks<K, V> extends HashMap<K, V> {
+  /**
+   * The marks of a file. Global marks are stored in the file they are set in as well as in the global marks.
+   * <p>
+   * Document changes need the marks at or after the changed line, so the marks that move with the text are also kept
+   * sorted by line. Updating the marks for a change doesn't reorder them, so the sorted array is only rebuilt after a
+   * mark is set or removed.
+   */
+  private static class FileMarks extends HashMap<Character, Mark> {
+    private static final VimMark[] EMPTY_MARKS = new VimMark[0];
+
     public void setTimestamp(Date timestamp) {
       this.timestamp = timestamp;
     }
 
     @Override
-    public V put(K key, V value) {
+    public Mark put(Character key, Mark value) {
       timestamp = new Date();
+      marksByLine = null;
       return super.put(key, value);
     }
 
+    @Override
+    public Mark remove(Object key) {
+      marksByLine = null;
+      return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+      marksByLine = null;
+      super.clear();
+    }
+
+    /**
+     * @return The marks that are updated when the document changes, sorted by line. The array must not be modified.
+     */
+    public @NotNull VimMark[] getMarksByLine() {
+      VimMark[] res = marksByLine;
+      if (res == null) {
+        int count = 0;
+        res = new VimMark[size()];
+        for (Mark mark : values()) {
+          if (mark instanceof VimMark && !mark.isClear()) {
+            res[count++] = (VimMark)mark;
+          }
+        }
+        res = count == 0 ? EMPTY_MARKS : Arrays.copyOf(res, count);
+        Arrays.sort(res, Comparator.comparingInt(VimMark::getLogicalLine));
+        marksByLine = res;
+      }
+      return res;
+    }
+
     private Date timestamp = new Date();
+    private @Nullable VimMark[] marksByLine;
   }
 
   /**
@@ -714,8 +794,9 @@ public class MarkGroup implements PersistentStateComponent<Element> {
       if (event.getOldLength() == 0) return;
 
       Document doc = event.getDocument();
-      updateMarkFromDelete(getAnEditor(doc), VimPlugin.getMark().getAllFileMarks(doc), event.getOffset(),
-                           event.getOldLength());
+      FileMarks marks = VimPlugin.getMark().getFileMarks(doc);
+      if (marks == null || marks.isEmpty()) return;
+      updateMarkFromDelete(getAnEditor(doc), marks, event.getOffset(), event.getOldLength());
       // TODO - update jumps
     }
 
@@ -733,8 +814,9 @@ public class MarkGroup implements PersistentStateComponent<Element> {
       if (event.getNewLength() == 0 || (event.getNewLength() == 1 && event.getNewFragment().charAt(0) != '\n')) return;
 
       Document doc = event.getDocument();
-      updateMarkFromInsert(getAnEditor(doc), VimPlugin.getMark().getAllFileMarks(doc), event.getOffset(),
-                           event.getNewLength());
+      FileMarks marks = VimPlugin.getMark().getFileMarks(doc);
+      if (marks == null || marks.isEmpty()) return;
+      updateMarkFromInsert(getAnEditor(doc), marks, event.getOffset(), event.getNewLength());
       // TODO - update jumps
     }
 
@@ -774,7 +856,7 @@ public class MarkGroup implements PersistentStateComponent<Element> {
 
       char ch = b.getMnemonic();
       if (GLOBAL_MARKS.indexOf(ch) != -1) {
-        FileMarks<Character, Mark> fmarks = VimPlugin.getMark().getFileMarks(b.getFile().getPath());
+        FileMarks fmarks = VimPlugin.getMark().getFileMarks(b.getFile().getPath());
         fmarks.remove(ch);
         VimPlugin.getMark().globalMarks.remove(ch);
         // No need to call mark.clear()
@@ -795,14 +877,14 @@ public class MarkGroup implements PersistentStateComponent<Element> {
         Editor editor = EditorHelper.getEditor(b.getFile());
         if (editor != null) col = editor.getCaretModel().getCurrentCaret().getLogicalPosition().column;
         IntellijMark mark = new IntellijMark(b, col, project.get());
-        FileMarks<Character, Mark> fmarks = VimPlugin.getMark().getFileMarks(b.getFile().getPath());
+        FileMarks fmarks = VimPlugin.getMark().getFileMarks(b.getFile().getPath());
         fmarks.put(ch, mark);
         VimPlugin.getMark().globalMarks.put(ch, mark);
       }
     }
   }
 
-  private final @NotNull HashMap<String, FileMarks<Character, Mark>> fileMarks = new HashMap<>();
+  private final @NotNull HashMap<String, FileMarks> fileMarks = new HashMap<>();
   private final @NotNull HashMap<Character, Mark> globalMarks = new HashMap<>();
   private final @NotNull List<Jump> jumps = new ArrayList<>();
   private int jumpSpot = -1;
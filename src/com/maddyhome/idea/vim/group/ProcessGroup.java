@@ -19,8 +19,13 @@
 package com.maddyhome.idea.vim.group;
 
 import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.util.text.CharSequenceReader;
 import com.maddyhome.idea.vim.KeyHandler;
 import com.maddyhome.idea.vim.VimPlugin;
@@ -30,6 +35,8 @@ import com.maddyhome.idea.vim.command.CommandState;
 import com.maddyhome.idea.vim.common.TextRange;
 import com.maddyhome.idea.vim.ex.CommandParser;
 import com.maddyhome.idea.vim.ex.ExException;
+import com.maddyhome.idea.vim.helper.MessageHelper;
+import com.maddyhome.idea.vim.helper.Msg;
 import com.maddyhome.idea.vim.helper.UiHelper;
 import com.maddyhome.idea.vim.ui.ExEntryPanel;
 import org.jetbrains.annotations.NotNull;
@@ -38,6 +45,10 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.io.*;
 import java.util.EnumSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 public class ProcessGroup {
@@ -179,46 +190,141 @@ public class ProcessGroup {
     return initText;
   }
 
+  /**
+   * Replaces the text of the range with the output of the command, run with the text as its input
+   *
+   * @return False if the document was changed while the command ran
+   */
   public boolean executeFilter(@NotNull Editor editor, @NotNull TextRange range,
                                @NotNull String command) throws IOException {
-    final CharSequence charsSequence = editor.getDocument().getCharsSequence();
+    final Document document = editor.getDocument();
     final int startOffset = range.getStartOffset();
     final int endOffset = range.getEndOffset();
-    final String output = executeCommand(command, charsSequence.subSequence(startOffset, endOffset));
-    editor.getDocument().replaceString(startOffset, endOffset, output);
+    final long modificationStamp = document.getModificationStamp();
+    // The text is immutable, so the command can read it on another thread
+    final CharSequence input = document.getImmutableCharSequence().subSequence(startOffset, endOffset);
+    final String output = executeCommand(command, input);
+    if (document.getModificationStamp() != modificationStamp) {
+      return false;
+    }
+    ApplicationManager.getApplication().runWriteAction(() -> document.replaceString(startOffset, endOffset, output));
     return true;
   }
 
+  /**
+   * Runs the command with the input, if any, and returns its output. On the event dispatch thread the command runs
+   * under a progress that can be cancelled, which stops the command.
+   */
   public @NotNull String executeCommand(@NotNull String command, @Nullable CharSequence input) throws IOException {
     if (logger.isDebugEnabled()) {
       logger.debug("command=" + command);
     }
 
+    final Application application = ApplicationManager.getApplication();
+    final String output;
+    if (application.isUnitTestMode() || !application.isDispatchThread()) {
+      output = runCommand(command, input);
+    }
+    else {
+      try {
+        output = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+          () -> runCommand(command, input), MessageHelper.message(Msg.running_command, command), true, null);
+      }
+      catch (ProcessCanceledException e) {
+        throw new IOException(MessageHelper.message(Msg.e_interr));
+      }
+    }
+
+    lastCommand = command;
+    return output;
+  }
+
+  /**
+   * Runs the command and waits for its output. The input is written and the error output is read on other threads,
+   * so that a command that writes more output than the pipe holds before it has read all of its input doesn't block.
+   */
+  private static @NotNull String runCommand(@NotNull String command, @Nullable CharSequence input) throws IOException {
     final Process process = Runtime.getRuntime().exec(command);
+    final Application application = ApplicationManager.getApplication();
+    final Future<?> inputWriter = application.executeOnPooledThread(() -> writeInput(process, input));
+    final Future<String> errorReader = application.executeOnPooledThread(() -> readAll(process.getErrorStream()));
+    final Future<String> outputReader = application.executeOnPooledThread(() -> readAll(process.getInputStream()));
+
+    final String output = waitFor(process, outputReader);
+    waitFor(process, inputWriter);
+    final String errors = waitFor(process, errorReader);
+    if (!errors.isEmpty() && logger.isDebugEnabled()) {
+      logger.debug("errors=" + errors);
+    }
+    return output;
+  }
 
-    if (input != null) {
-      final BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-      copy(new CharSequenceReader(input), outputWriter);
-      outputWriter.close();
+  private static void writeInput(@NotNull Process process, @Nullable CharSequence input) {
+    try (Writer writer = new OutputStreamWriter(process.getOutputStream())) {
+      if (input != null) {
+        copy(new CharSequenceReader(input), writer);
+      }
+    }
+    catch (IOException e) {
+      // The command doesn't have to read all of its input
+      logger.debug(e);
     }
+  }
 
-    final BufferedReader inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-    final StringWriter writer = new StringWriter();
-    copy(inputReader, writer);
-    writer.close();
+  private static @NotNull String readAll(@NotNull InputStream stream) throws IOException {
+    try (Reader reader = new InputStreamReader(stream)) {
+      final StringBuilder res = new StringBuilder();
+      final char[] buf = new char[BUFFER_SIZE];
+      int cnt;
+      while ((cnt = reader.read(buf)) != -1) {
+        res.append(buf, 0, cnt);
+      }
+      return res.toString();
+    }
+  }
 
-    lastCommand = command;
-    return writer.toString();
+  /**
+   * Waits for the result of a thread of the command. Stops the command if the progress is cancelled or the thread
+   * fails.
+   */
+  private static <T> T waitFor(@NotNull Process process, @NotNull Future<T> future) throws IOException {
+    try {
+      while (true) {
+        try {
+          return future.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+          ProgressManager.checkCanceled();
+        }
+      }
+    }
+    catch (ExecutionException e) {
+      process.destroy();
+      final Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+    }
+    catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    catch (ProcessCanceledException e) {
+      process.destroy();
+      throw e;
+    }
   }
 
-  private void copy(@NotNull Reader from, @NotNull Writer to) throws IOException {
-    char[] buf = new char[2048];
+  private static void copy(@NotNull Reader from, @NotNull Writer to) throws IOException {
+    char[] buf = new char[BUFFER_SIZE];
     int cnt;
     while ((cnt = from.read(buf)) != -1) {
       to.write(buf, 0, cnt);
     }
   }
 
+  private static final int BUFFER_SIZE = 8192;
+  private static final long CANCEL_CHECK_INTERVAL = 50;
+
   private String lastCommand;
 
   private static final Logger logger = Logger.getInstance(ProcessGroup.class.getName());
@@ -87,6 +87,12 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
   private static final String VALID_REGISTERS = WRITABLE_REGISTERS + READONLY_REGISTERS;
   private static final List<Character> CLIPBOARD_REGISTERS = ImmutableList.of('*', '+');
   private static final Logger logger = Logger.getInstance(RegisterGroup.class.getName());
+  /**
+   * The length of the largest text that the copy-paste processors of the IDE collect and convert data for, e.g. the
+   * references to import when the text is pasted into another file. Collecting them for a larger text, like deleting
+   * most of a large file, takes much longer than the command itself, so such text is copied as plain text.
+   */
+  private static final int MAX_PROCESSED_TEXT_LENGTH = 100_000;
 
   public static char DEFAULT_REGISTER = '"';
   private char lastRegister = DEFAULT_REGISTER;
@@ -193,6 +199,8 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
         transferableData.stream().map(it -> it.getClass().getName()).collect(Collectors.joining(","));
       logger.debug("Copy to '" + lastRegister + "' with transferable data: " + transferableClasses);
     }
+    // The registers don't change their text or data, so all of them share the same ones
+    final List<TextBlockTransferableData> registerData = Collections.unmodifiableList(transferableData);
     if (Character.isUpperCase(register)) {
       char lreg = Character.toLowerCase(register);
       Register r = registers.get(lreg);
@@ -202,13 +210,13 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
       }
       // Set the text if the lowercase register didn't exist yet
       else {
-        registers.put(lreg, new Register(lreg, type, processedText, new ArrayList<>(transferableData)));
+        registers.put(lreg, new Register(lreg, type, processedText, registerData));
         if (logger.isDebugEnabled()) logger.debug("register '" + register + "' contains: \"" + processedText + "\"");
       }
     }
     // Put the text in the specified register
     else {
-      registers.put(register, new Register(register, type, processedText, new ArrayList<>(transferableData)));
+      registers.put(register, new Register(register, type, processedText, registerData));
       if (logger.isDebugEnabled()) logger.debug("register '" + register + "' contains: \"" + processedText + "\"");
     }
 
@@ -218,7 +226,7 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
 
     // Also add it to the default register if the default wasn't specified
     if (register != DEFAULT_REGISTER && ".:/".indexOf(register) == -1) {
-      registers.put(DEFAULT_REGISTER, new Register(DEFAULT_REGISTER, type, processedText, new ArrayList<>(transferableData)));
+      registers.put(DEFAULT_REGISTER, new Register(DEFAULT_REGISTER, type, processedText, registerData));
       if (logger.isDebugEnabled()) logger.debug("register '" + register + "' contains: \"" + processedText + "\"");
     }
 
@@ -236,17 +244,17 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
             registers.put((char)(d + 1), t);
           }
         }
-        registers.put('1', new Register('1', type, processedText, new ArrayList<>(transferableData)));
+        registers.put('1', new Register('1', type, processedText, registerData));
       }
 
       // Deletes smaller than one line and without specified register go the the "-" register
       if (smallInlineDeletion && register == DEFAULT_REGISTER) {
-        registers.put('-', new Register('-', type, processedText, new ArrayList<>(transferableData)));
+        registers.put('-', new Register('-', type, processedText, registerData));
       }
     }
     // Yanks also go to register 0 if the default register was used
     else if (register == DEFAULT_REGISTER) {
-      registers.put('0', new Register('0', type, processedText, new ArrayList<>(transferableData)));
+      registers.put('0', new Register('0', type, processedText, registerData));
       if (logger.isDebugEnabled()) logger.debug("register '" + '0' + "' contains: \"" + processedText + "\"");
     }
 
@@ -261,6 +269,11 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
                                                                       @NotNull TextRange textRange,
                                                                       String text) {
     final List<TextBlockTransferableData> transferableDatas = new ArrayList<>();
+    if (text.length() > MAX_PROCESSED_TEXT_LENGTH) {
+      logger.debug("Text is too long to collect transferable data");
+      transferableDatas.add(new CaretStateTransferableData(new int[]{0}, new int[]{text.length()}));
+      return transferableDatas;
+    }
     final Project project = editor.getProject();
     if (project == null) return new ArrayList<>();
 
@@ -287,6 +300,7 @@ public class RegisterGroup implements PersistentStateComponent<Element> {
   }
 
   private String preprocessText(@NotNull Editor editor, @NotNull TextRange textRange, String text, List<TextBlockTransferableData> transferableDatas) {
+    if (text.length() > MAX_PROCESSED_TEXT_LENGTH) return text;
     final Project project = editor.getProject();
     if (project == null) return text;
 
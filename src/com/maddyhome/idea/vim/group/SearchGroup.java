@@ -18,7 +18,11 @@
 package com.maddyhome.idea.vim.group;
 
 import com.google.common.collect.Lists;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.PersistentStateComponent;
 import com.intellij.openapi.components.RoamingType;
 import com.intellij.openapi.components.State;
@@ -32,10 +36,15 @@ import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.editor.markup.*;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.util.Ref;
 import com.intellij.ui.ColorUtil;
+import com.intellij.util.DocumentUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.command.CommandFlags;
 import com.maddyhome.idea.vim.command.SelectionType;
@@ -56,6 +65,7 @@ import org.jdom.Element;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.concurrency.CancellablePromise;
 
 import javax.swing.*;
 import java.awt.*;
@@ -63,6 +73,9 @@ import java.text.NumberFormat;
 import java.text.ParsePosition;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
 
 @State(name = "VimSearchSettings", storages = {
   @Storage(value = "$APP_CONFIG$/vim_settings.xml", roamingType = RoamingType.DISABLED)
@@ -133,22 +146,67 @@ public class SearchGroup implements PersistentStateComponent<Element> {
                                          int startLine,
                                          int endLine,
                                          boolean ignoreCase) {
-    final List<TextRange> results = Lists.newArrayList();
+    return findAll(editor, pattern, startLine, endLine, ignoreCase, 0, null);
+  }
+
+  /**
+   * Finds all matches in the lines, but stops when System.nanoTime() passes the deadline, unless it is 0. The matches
+   * found until then are returned, and timedOut is set to true.
+   */
+  static @NotNull List<TextRange> findAll(@NotNull Editor editor,
+                                          @NotNull String pattern,
+                                          int startLine,
+                                          int endLine,
+                                          boolean ignoreCase,
+                                          long deadline,
+                                          @Nullable Ref<Boolean> timedOut) {
     final int lineCount = EditorHelper.getLineCount(editor);
     final int actualEndLine = endLine == -1 ? lineCount : endLine;
+    if (actualEndLine - startLine >= PARALLEL_SEARCH_LINE_COUNT && Runtime.getRuntime().availableProcessors() > 1) {
+      return findAllParallel(editor, pattern, startLine, actualEndLine, ignoreCase, deadline, timedOut);
+    }
+
+    final List<TextRange> results = Lists.newArrayList();
+    final RegExp.regmmatch_T regMatch = compileForFindAll(pattern, ignoreCase);
+    if (regMatch != null) {
+      findAll(editor, new RegExp(), regMatch, startLine, 0, actualEndLine, deadline, timedOut, results);
+    }
+
+    return results;
+  }
 
+  private static @Nullable RegExp.regmmatch_T compileForFindAll(@NotNull String pattern, boolean ignoreCase) {
     final RegExp.regmmatch_T regMatch = new RegExp.regmmatch_T();
-    final RegExp regExp = new RegExp();
-    regMatch.regprog = regExp.vim_regcomp(pattern, 1);
+    regMatch.regprog = new RegExp().vim_regcomp(pattern, 1);
     if (regMatch.regprog == null) {
-      return results;
+      return null;
     }
 
     regMatch.rmm_ic = ignoreCase;
+    return regMatch;
+  }
 
-    int col = 0;
-    for (int line = startLine; line <= actualEndLine; ) {
-      int matchedLines = regExp.vim_regexec_multi(regMatch, editor, lineCount, line, col);
+  /**
+   * Adds the matches that start in the lines up to endLine to the results, searching from the given line and column.
+   * Returns the position where the search would continue, which is the start of the line after endLine unless the last
+   * match ends after it.
+   */
+  private static @NotNull CharacterPosition findAll(@NotNull Editor editor,
+                                                    @NotNull RegExp regExp,
+                                                    @NotNull RegExp.regmmatch_T regMatch,
+                                                    int line,
+                                                    int col,
+                                                    int endLine,
+                                                    long deadline,
+                                                    @Nullable Ref<Boolean> timedOut,
+                                                    @NotNull List<TextRange> results) {
+    final int lineCount = EditorHelper.getLineCount(editor);
+    while (line <= endLine) {
+      int matchedLines = regExp.vim_regexec_multi(regMatch, editor, lineCount, line, col, deadline);
+      if (regExp.vim_regexec_interrupted()) {
+        checkInterrupted(regExp, timedOut);
+        break;
+      }
       if (matchedLines > 0) {
         final CharacterPosition startPos = new CharacterPosition(line + regMatch.startpos[0].lnum,
                                                                  regMatch.startpos[0].col);
@@ -173,9 +231,117 @@ public class SearchGroup implements PersistentStateComponent<Element> {
       }
     }
 
+    return new CharacterPosition(line, col);
+  }
+
+  /**
+   * Searches chunks of the lines concurrently and joins the matches in order, giving the same matches as a sequential
+   * search.
+   *
+   * The search of each chunk starts at its first line. A sequential search only does the same if the previous match
+   * doesn't end after the previous chunk, otherwise the chunk is searched again from the end of that match. This is
+   * rare, since only a match that spans lines can end in the next chunk.
+   */
+  private static @NotNull List<TextRange> findAllParallel(@NotNull Editor editor,
+                                                          @NotNull String pattern,
+                                                          int startLine,
+                                                          int endLine,
+                                                          boolean ignoreCase,
+                                                          long deadline,
+                                                          @Nullable Ref<Boolean> timedOut) {
+    final List<TextRange> results = Lists.newArrayList();
+    // Compiling once puts the program in the cache for the chunks, and checks the pattern
+    if (compileForFindAll(pattern, ignoreCase) == null) {
+      return results;
+    }
+
+    final List<SearchChunk> chunks = new ArrayList<>();
+    for (int line = startLine; line <= endLine; line += PARALLEL_SEARCH_CHUNK_SIZE) {
+      chunks.add(new SearchChunk(line, Math.min(line + PARALLEL_SEARCH_CHUNK_SIZE - 1, endLine)));
+    }
+
+    // The caller has read access, so the chunks are searched in read actions too
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(chunks, indicator, chunk -> {
+      // RegExp isn't thread safe, so every chunk has its own
+      final RegExp.regmmatch_T regMatch = Objects.requireNonNull(compileForFindAll(pattern, ignoreCase));
+      chunk.next = findAll(editor, new RegExp(), regMatch, chunk.startLine, 0, chunk.endLine, deadline, chunk.timedOut,
+                           chunk.results);
+      return true;
+    });
+
+    CharacterPosition next = new CharacterPosition(startLine, 0);
+    for (SearchChunk chunk : chunks) {
+      if (next.line > chunk.endLine) {
+        // The last match covers the whole chunk
+        continue;
+      }
+
+      final Ref<Boolean> chunkTimedOut;
+      if (next.line == chunk.startLine && next.column == 0) {
+        results.addAll(chunk.results);
+        next = chunk.next;
+        chunkTimedOut = chunk.timedOut;
+      }
+      else {
+        final RegExp.regmmatch_T regMatch = Objects.requireNonNull(compileForFindAll(pattern, ignoreCase));
+        chunkTimedOut = Ref.create(false);
+        next = findAll(editor, new RegExp(), regMatch, next.line, next.column, chunk.endLine, deadline, chunkTimedOut,
+                       results);
+      }
+
+      if (chunkTimedOut.get()) {
+        if (timedOut != null) {
+          timedOut.set(true);
+        }
+        break;
+      }
+    }
+
     return results;
   }
 
+  private static class SearchChunk {
+    final int startLine;
+    final int endLine;
+    final @NotNull List<TextRange> results = new ArrayList<>();
+    final @NotNull Ref<Boolean> timedOut = Ref.create(false);
+    @NotNull CharacterPosition next;
+
+    SearchChunk(int startLine, int endLine) {
+      this.startLine = startLine;
+      this.endLine = endLine;
+      next = new CharacterPosition(endLine + 1, 0);
+    }
+  }
+
+  /**
+   * Handles a search that stopped before it finished. A cancelled search throws {@link ProcessCanceledException}, so
+   * e.g. a non-blocking read action is restarted. For a search that ran out of time, timedOut is set
+   */
+  private static void checkInterrupted(@NotNull RegExp regExp, @Nullable Ref<Boolean> timedOut) {
+    if (regExp.vim_regexec_timed_out()) {
+      if (timedOut != null) {
+        timedOut.set(true);
+      }
+    }
+    else {
+      ProgressManager.checkCanceled();
+    }
+  }
+
+  /**
+   * Returns the deadline for highlighting search matches, 'redrawtime' from now, or 0 if there is no limit
+   */
+  static long getHighlightDeadline() {
+    final int redrawtime = OptionsManager.INSTANCE.getRedrawtime().value();
+    return redrawtime > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(redrawtime) : 0;
+  }
+
+  static void showHighlightTimeoutMessage() {
+    VimPlugin.showMessage(MessageHelper.message(Msg.e_redrawtime));
+  }
+
   private static @NotNull ReplaceConfirmationChoice confirmChoice(@NotNull Editor editor, @NotNull String match, @NotNull Caret caret, int startoff) {
     final Ref<ReplaceConfirmationChoice> result = Ref.create(ReplaceConfirmationChoice.QUIT);
     final Function1<KeyStroke, Boolean> keyStrokeProcessor = key -> {
@@ -217,7 +383,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     return result.get();
   }
 
-  private static boolean shouldIgnoreCase(@NotNull String pattern, boolean ignoreSmartCase) {
+  static boolean shouldIgnoreCase(@NotNull String pattern, boolean ignoreSmartCase) {
     boolean sc = !ignoreSmartCase && OptionsManager.INSTANCE.getSmartcase().isSet();
     boolean ic = OptionsManager.INSTANCE.getIgnorecase().isSet();
 
@@ -344,6 +510,22 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     return findItOffset(editor, offset, count, 1);
   }
 
+  /**
+   * Finds all matches of the last search pattern in the document with one scan, instead of searching for the next
+   * match again and again until the search wraps around. The search offset isn't used.
+   *
+   * @return The matches in the order of their offsets
+   */
+  public @NotNull List<TextRange> searchAll(@NotNull Editor editor) {
+    resetShowSearchHighlight();
+    updateSearchHighlights();
+    if (lastSearch == null) {
+      return Collections.emptyList();
+    }
+    return SearchResultCache.findAll(editor, lastSearch, 0, -1, shouldIgnoreCase(lastSearch, lastIgnoreSmartCase), 0,
+                                     null);
+  }
+
   private int searchNextWithDirection(@NotNull Editor editor, @NotNull Caret caret, int count, int dir) {
     resetShowSearchHighlight();
     updateSearchHighlights();
@@ -380,20 +562,86 @@ public class SearchGroup implements PersistentStateComponent<Element> {
   }
 
   public int updateIncsearchHighlights(@NotNull Editor editor, @NotNull String pattern, boolean forwards, int caretOffset, @Nullable LineRange searchRange) {
+    return updateIncsearchHighlights(editor, pattern, forwards, caretOffset, searchRange, null);
+  }
+
+  private int updateIncsearchHighlights(@NotNull Editor editor, @NotNull String pattern, boolean forwards, int caretOffset,
+                                        @Nullable LineRange searchRange, @Nullable FoundMatches found) {
     final int searchStartOffset = searchRange != null ? EditorHelper.getLineStartOffset(editor, searchRange.startLine) : caretOffset;
     final boolean showHighlights = OptionsManager.INSTANCE.getHlsearch().isSet();
-    return updateSearchHighlights(pattern, false, showHighlights, searchStartOffset, searchRange, forwards, false);
+    return updateSearchHighlights(pattern, false, showHighlights, searchStartOffset, searchRange, forwards, false, found);
+  }
+
+  /**
+   * Updates the incsearch highlights like {@link #updateIncsearchHighlights}, but finds the matches in a non-blocking
+   * read action in the background first. The highlights are then updated on the EDT with the matches that were found,
+   * also if the search ran out of time, so the EDT doesn't search the document again.
+   *
+   * Without 'hlsearch' only the next match is searched for, and patterns like \%# depend on the caret of the editor,
+   * so these are updated right away instead.
+   *
+   * @param expired   Tells whether the search is no longer needed, e.g. because the pattern was changed again. An
+   *                  expired search is cancelled and its highlights aren't updated
+   * @param onUpdated Gets the offset of the current match, or -1, after the highlights were updated
+   * @return The background search, or null if the highlights were updated right away
+   */
+  public @Nullable CancellablePromise<FoundMatches> updateIncsearchHighlightsInBackground(@NotNull Editor editor,
+                                                                                         @NotNull String pattern,
+                                                                                         boolean forwards,
+                                                                                         int caretOffset,
+                                                                                         @Nullable LineRange searchRange,
+                                                                                         @NotNull BooleanSupplier expired,
+                                                                                         @NotNull IntConsumer onUpdated) {
+    if (!OptionsManager.INSTANCE.getHlsearch().isSet() ||
+        !shouldAddAllSearchHighlights(editor, pattern, true) ||
+        pattern.contains("\\%")) {
+      onUpdated.accept(updateIncsearchHighlights(editor, pattern, forwards, caretOffset, searchRange));
+      return null;
+    }
+
+    final Document document = editor.getDocument();
+    final boolean ignoreCase = shouldIgnoreCase(pattern, false);
+    final int startLine = searchRange == null ? 0 : searchRange.startLine;
+    final int endLine = searchRange == null ? -1 : searchRange.endLine;
+    return ReadAction.nonBlocking(() -> {
+      final Ref<Boolean> timedOut = Ref.create(false);
+      final List<TextRange> results =
+        SearchResultCache.findAll(editor, pattern, startLine, endLine, ignoreCase, getHighlightDeadline(), timedOut);
+      return new FoundMatches(document, results, timedOut.get());
+    })
+      .expireWhen(() -> expired.getAsBoolean() || editor.isDisposed())
+      .finishOnUiThread(ModalityState.defaultModalityState(), found ->
+        onUpdated.accept(updateIncsearchHighlights(editor, pattern, forwards, caretOffset, searchRange, found)))
+      .submit(AppExecutorUtil.getAppExecutorService());
+  }
+
+  /**
+   * The matches of a pattern in the lines of a document that were searched before the highlights are updated
+   */
+  public static final class FoundMatches {
+    private final @NotNull Document document;
+    private final @NotNull List<TextRange> results;
+    private final boolean timedOut;
+
+    private FoundMatches(@NotNull Document document, @NotNull List<TextRange> results, boolean timedOut) {
+      this.document = document;
+      this.results = results;
+      this.timedOut = timedOut;
+    }
   }
 
   private void updateSearchHighlights(@Nullable String pattern, boolean shouldIgnoreSmartCase, boolean showHighlights, boolean forceUpdate) {
-    updateSearchHighlights(pattern, shouldIgnoreSmartCase, showHighlights, -1, null, true, forceUpdate);
+    updateSearchHighlights(pattern, shouldIgnoreSmartCase, showHighlights, -1, null, true, forceUpdate, null);
   }
 
   /**
    * Refreshes current search highlights for all editors of currently active text editor/document
+   *
+   * @param found The matches that were already found in the search range, or null to search for them
    */
   private int updateSearchHighlights(@Nullable String pattern, boolean shouldIgnoreSmartCase, boolean showHighlights,
-                                     int initialOffset, @Nullable LineRange searchRange, boolean forwards, boolean forceUpdate) {
+                                     int initialOffset, @Nullable LineRange searchRange, boolean forwards, boolean forceUpdate,
+                                     @Nullable FoundMatches found) {
     int currentMatchOffset = -1;
 
     ProjectManager projectManager = ProjectManager.getInstanceIfCreated();
@@ -415,12 +663,31 @@ public class SearchGroup implements PersistentStateComponent<Element> {
         }
 
         if (shouldAddAllSearchHighlights(editor, pattern, showHighlights)) {
-          final int startLine = searchRange == null ? 0 : searchRange.startLine;
-          final int endLine = searchRange == null ? -1 : searchRange.endLine;
-          List<TextRange> results = findAll(editor, pattern, startLine, endLine, shouldIgnoreCase(pattern, shouldIgnoreSmartCase));
-          if (!results.isEmpty()) {
-            currentMatchOffset = findClosestMatch(editor, results, initialOffset, forwards);
-            highlightSearchResults(editor, pattern, results, currentMatchOffset);
+          final boolean ignoreCase = shouldIgnoreCase(pattern, shouldIgnoreSmartCase);
+          if (searchRange == null && !isIncrementalSearchHighlights(initialOffset) &&
+              EditorHelper.getLineCount(editor) > LAZY_HIGHLIGHT_LINE_COUNT) {
+            highlightVisibleSearchResultsFirst(editor, pattern, ignoreCase);
+          }
+          else {
+            final int startLine = searchRange == null ? 0 : searchRange.startLine;
+            final int endLine = searchRange == null ? -1 : searchRange.endLine;
+            final Ref<Boolean> timedOut = Ref.create(false);
+            final List<TextRange> results;
+            if (found != null && found.document == editor.getDocument()) {
+              results = found.results;
+              timedOut.set(found.timedOut);
+            }
+            else {
+              results = SearchResultCache.findAll(editor, pattern, startLine, endLine, ignoreCase, getHighlightDeadline(),
+                                                  timedOut);
+            }
+            if (timedOut.get()) {
+              showHighlightTimeoutMessage();
+            }
+            if (!results.isEmpty()) {
+              currentMatchOffset = findClosestMatch(editor, results, initialOffset, forwards);
+              highlightSearchResults(editor, pattern, results, currentMatchOffset);
+            }
           }
           UserDataManager.setVimLastSearch(editor, pattern);
         }
@@ -430,7 +697,12 @@ public class SearchGroup implements PersistentStateComponent<Element> {
           if (wrap) searchOptions.add(SearchOptions.WRAP);
           if (shouldIgnoreSmartCase) searchOptions.add(SearchOptions.IGNORE_SMARTCASE);
           if (!forwards) searchOptions.add(SearchOptions.BACKWARDS);
-          final TextRange result = findIt(editor, pattern, initialOffset, 1, searchOptions);
+          final Ref<Boolean> timedOut = Ref.create(false);
+          final TextRange result = findIt(editor, pattern, initialOffset, 1, searchOptions, getHighlightDeadline(),
+                                          timedOut);
+          if (timedOut.get()) {
+            showHighlightTimeoutMessage();
+          }
           if (result != null && pattern != null) {
             currentMatchOffset = result.getStartOffset();
             final List<TextRange> results = Collections.singletonList(result);
@@ -449,6 +721,54 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     return currentMatchOffset;
   }
 
+  /**
+   * Highlights the matches in the visible part of the editor, with a margin of one screen above and below it. The rest
+   * of the document is highlighted by a background job, so the time to the first highlight doesn't depend on the size
+   * of the document
+   */
+  private static void highlightVisibleSearchResultsFirst(@NotNull Editor editor, @NotNull String pattern,
+                                                         boolean ignoreCase) {
+    final int lineCount = EditorHelper.getLineCount(editor);
+    final int topLine = EditorHelper.visualLineToLogicalLine(editor, EditorHelper.getVisualLineAtTopOfScreen(editor));
+    final int bottomLine = EditorHelper.visualLineToLogicalLine(editor, EditorHelper.getVisualLineAtBottomOfScreen(editor));
+    final int margin = bottomLine - topLine + 1;
+    final int startLine = Math.max(0, topLine - margin);
+    final int endLine = Math.min(lineCount - 1, bottomLine + margin);
+
+    final Ref<Boolean> timedOut = Ref.create(false);
+    highlightSearchResults(editor, pattern,
+                           SearchResultCache.findAll(editor, pattern, startLine, endLine, ignoreCase,
+                                                     getHighlightDeadline(), timedOut),
+                           -1);
+    if (timedOut.get()) {
+      showHighlightTimeoutMessage();
+      return;
+    }
+
+    final SearchHighlightJob job = new SearchHighlightJob(editor, pattern, ignoreCase);
+    // findAll searches one line past the last line when given -1, so do the same here
+    job.addLines(endLine + 1, lineCount);
+    job.addLines(0, startLine - 1);
+    job.start();
+  }
+
+  /**
+   * Restarts the background highlighting of an editor after its document was changed. The lines that were already
+   * searched have moved, so the whole document is searched again, and only the matches that aren't highlighted yet
+   * are added
+   */
+  private static void restartSearchHighlightJob(@NotNull Editor editor) {
+    final SearchHighlightJob job = UserDataManager.getVimSearchHighlightJob(editor);
+    if (job == null || job.isFinished()) {
+      return;
+    }
+
+    job.cancel();
+    final SearchHighlightJob restarted = new SearchHighlightJob(editor, job.getPattern(), job.isIgnoreCase());
+    restarted.addLines(0, EditorHelper.getLineCount(editor));
+    restarted.start();
+  }
+
   /**
    * Remove current search highlights if hlSearch is false, or if the pattern is changed
    */
@@ -490,9 +810,44 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     return initialOffset != -1;
   }
 
-  private void highlightSearchLines(@NotNull Editor editor, int startLine, int endLine) {
+  /**
+   * Updates the search highlights for the lines touched by a document change
+   *
+   * Only the highlighters that intersect the changed lines are removed. A match can span several lines, so the range
+   * is extended until it covers every removed match, and then the pattern is searched in these lines only. All other
+   * highlighters have already been moved by the IDE.
+   */
+  private void highlightChangedLines(@NotNull Editor editor, @NotNull SearchHighlightIndex index, int startOffset,
+                                     int endOffset) {
+    final Document document = editor.getDocument();
+    int startLine = document.getLineNumber(startOffset);
+    int endLine = document.getLineNumber(endOffset);
+
+    int rangeStart;
+    int rangeEnd;
+    do {
+      rangeStart = document.getLineStartOffset(startLine);
+      rangeEnd = document.getLineEndOffset(endLine);
+      for (RangeHighlighter highlighter : index.removeIntersecting(rangeStart, rangeEnd)) {
+        if (highlighter.isValid()) {
+          startLine = Math.min(startLine, document.getLineNumber(highlighter.getStartOffset()));
+          endLine = Math.max(endLine, document.getLineNumber(highlighter.getEndOffset()));
+        }
+        editor.getMarkupModel().removeHighlighter(highlighter);
+      }
+    }
+    while (rangeStart != document.getLineStartOffset(startLine) || rangeEnd != document.getLineEndOffset(endLine));
+
     if (lastSearch != null) {
-      final List<TextRange> results = findAll(editor, lastSearch, startLine, endLine, shouldIgnoreCase(lastSearch, lastIgnoreSmartCase));
+      final Ref<Boolean> timedOut = Ref.create(false);
+      final List<TextRange> results = new ArrayList<>(
+        SearchResultCache.findAll(editor, lastSearch, startLine, endLine,
+                                  shouldIgnoreCase(lastSearch, lastIgnoreSmartCase), getHighlightDeadline(), timedOut));
+      if (timedOut.get()) {
+        showHighlightTimeoutMessage();
+      }
+      // A match at the end of the range can run into a match that we've kept
+      results.removeIf(range -> index.intersects(range.getStartOffset(), range.getEndOffset()));
       highlightSearchResults(editor, lastSearch, results, -1);
     }
   }
@@ -584,7 +939,48 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     }
   }
 
+  /**
+   * Searches like {@link #findIt(Editor, String, int, int, EnumSet)}, in a way that the user can cancel. When the
+   * search takes longer than {@link #SEARCH_PROGRESS_DELAY} on the EDT, it is started again in the background under a
+   * progress indicator, and Esc cancels it.
+   */
+  private static @Nullable TextRange findItCancellable(@NotNull Editor editor, @Nullable String pattern, int startOffset,
+                                                       int count, @NotNull EnumSet<SearchOptions> searchOptions) {
+    final Application application = ApplicationManager.getApplication();
+    // A background read action would wait for the write action to finish
+    if (application.isUnitTestMode() || !application.isDispatchThread() || application.isWriteAccessAllowed()) {
+      return findIt(editor, pattern, startOffset, count, searchOptions);
+    }
+
+    final Ref<Boolean> timedOut = Ref.create(false);
+    final TextRange range = findIt(editor, pattern, startOffset, count, searchOptions,
+                                   System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEARCH_PROGRESS_DELAY), timedOut);
+    if (!timedOut.get()) {
+      return range;
+    }
+
+    try {
+      return ProgressManager.getInstance().runProcessWithProgressSynchronously(
+        () -> ReadAction.compute(() -> findIt(editor, pattern, startOffset, count, searchOptions)),
+        MessageHelper.message(Msg.searching, pattern), true, editor.getProject());
+    }
+    catch (ProcessCanceledException e) {
+      VimPlugin.showMessage(MessageHelper.message(Msg.e_interr));
+      return null;
+    }
+  }
+
   private static TextRange findIt(@NotNull Editor editor, @Nullable String pattern, int startOffset, int count, EnumSet<SearchOptions> searchOptions) {
+    return findIt(editor, pattern, startOffset, count, searchOptions, 0, null);
+  }
+
+  /**
+   * Like {@link #findIt(Editor, String, int, int, EnumSet)}, but gives up when System.nanoTime() passes the deadline,
+   * unless it is 0. Returns null and sets timedOut to true then.
+   */
+  private static TextRange findIt(@NotNull Editor editor, @Nullable String pattern, int startOffset, int count,
+                                  EnumSet<SearchOptions> searchOptions, long deadline,
+                                  @Nullable Ref<Boolean> timedOut) {
     if (pattern == null || pattern.length() == 0) {
       logger.warn("Pattern is null or empty. Cannot perform search");
       return null;
@@ -670,7 +1066,10 @@ public class SearchGroup implements PersistentStateComponent<Element> {
           /*
           * Look for a match somewhere in the line.
           */
-          nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum, 0);
+          nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum, 0, deadline);
+          if (sp.vim_regexec_interrupted()) {
+            break;
+          }
           if (nmatched > 0) {
             /* match may actually be in another line when using \zs */
             matchpos = new RegExp.lpos_T(regmatch.startpos[0]);
@@ -706,7 +1105,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
                   ++matchcol;
                 }
                 if (ptr.charAt(matchcol) == '\u0000' ||
-                    (nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum, matchcol)) == 0) {
+                    (nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum, matchcol, deadline)) == 0) {
                   match_ok = false;
                   break;
                 }
@@ -761,7 +1160,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
                   ++matchcol;
                 }
                 if (ptr.charAt(matchcol) == '\u0000' ||
-                    (nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum + matchpos.lnum, matchcol)) == 0) {
+                    (nmatched = sp.vim_regexec_multi(regmatch, editor, lcount, lnum + matchpos.lnum, matchcol, deadline)) == 0) {
                   break;
                 }
 
@@ -804,7 +1203,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
         * stop the search if wrapscan isn't set, after an interrupt and
         * after a match
         */
-        if (!searchOptions.contains(SearchOptions.WRAP) || found != 0) {
+        if (!searchOptions.contains(SearchOptions.WRAP) || sp.vim_regexec_interrupted() || found != 0) {
           break;
         }
 
@@ -831,6 +1230,11 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     }
     while (--count > 0 && found != 0);   /* stop after count matches or no match */
 
+    if (sp.vim_regexec_interrupted()) {
+      checkInterrupted(sp, timedOut);
+      return null;
+    }
+
     if (found == 0)             /* did not find it */ {
       //if ((options & SEARCH_MSG) == SEARCH_MSG)
       if (searchOptions.contains(SearchOptions.SHOW_MESSAGES)) {
@@ -855,11 +1259,11 @@ public class SearchGroup implements PersistentStateComponent<Element> {
                          new CharacterPosition(endpos.lnum, endpos.col).toOffset(editor));
   }
 
-  private static void highlightSearchResults(@NotNull Editor editor, @NotNull String pattern, List<TextRange> results,
-                                             int currentMatchOffset) {
-    Collection<RangeHighlighter> highlighters = UserDataManager.getVimLastHighlighters(editor);
+  static void highlightSearchResults(@NotNull Editor editor, @NotNull String pattern, List<TextRange> results,
+                                     int currentMatchOffset) {
+    SearchHighlightIndex highlighters = UserDataManager.getVimLastHighlighters(editor);
     if (highlighters == null) {
-      highlighters = new ArrayList<>();
+      highlighters = new SearchHighlightIndex();
       UserDataManager.setVimLastHighlighters(editor, highlighters);
     }
 
@@ -939,7 +1343,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     if (lastIgnoreSmartCase) searchOptions.add(SearchOptions.IGNORE_SMARTCASE);
     if (wrap) searchOptions.add(SearchOptions.WRAP);
     if (hasEndOffset) searchOptions.add(SearchOptions.WANT_ENDPOS);
-    TextRange range = findIt(editor, lastSearch, startOffset, count, searchOptions);
+    TextRange range = findItCancellable(editor, lastSearch, startOffset, count, searchOptions);
     if (range == null) {
       logger.warn("No range is found");
       return -1;
@@ -1226,6 +1630,10 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     boolean firstMatch = true;
     boolean got_quit = false;
     int lcount = EditorHelper.getLineCount(editor);
+    // Replacements that aren't confirmed are made together at the end, the offsets are those of the unchanged text
+    final List<TextRange> replaceRanges = new ArrayList<>();
+    final List<String> replaceTexts = new ArrayList<>();
+    int replaceDelta = 0;
     for (int lnum = line1; lnum <= line2 && !got_quit; ) {
       CharacterPosition newpos = null;
       int nmatch = sp.vim_regexec_multi(regmatch, editor, lcount, lnum, searchcol);
@@ -1237,6 +1645,7 @@ public class SearchGroup implements PersistentStateComponent<Element> {
 
         String match = sp.vim_regsub_multi(regmatch, lnum, sub, 1, false);
         if (match == null) {
+          replaceRanges(editor, replaceRanges, replaceTexts);
           return false;
         }
 
@@ -1275,7 +1684,13 @@ public class SearchGroup implements PersistentStateComponent<Element> {
             }
           }
 
-          if (doReplace) {
+          if (doReplace && !do_ask) {
+            replaceRanges.add(new TextRange(startoff, endoff));
+            replaceTexts.add(match);
+            lastMatch = startoff + replaceDelta;
+            replaceDelta += match.length() - (endoff - startoff);
+          }
+          else if (doReplace) {
             ApplicationManager.getApplication().runWriteAction(() -> editor.getDocument().replaceString(startoff, endoff, match));
             lastMatch = startoff;
             newpos = CharacterPosition.Companion.fromOffset(editor, newend);
@@ -1308,6 +1723,8 @@ public class SearchGroup implements PersistentStateComponent<Element> {
       }
     }
 
+    replaceRanges(editor, replaceRanges, replaceTexts);
+
     if (lastMatch != -1) {
       if (!got_quit) {
         MotionGroup.moveCaret(editor, caret,
@@ -1321,6 +1738,30 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     return true;
   }
 
+  /**
+   * Replaces the ranges of the text, which are in order, in one write action. The listeners don't handle the changes,
+   * the marks and the search highlights are updated once for all of them instead
+   */
+  private void replaceRanges(@NotNull Editor editor, @NotNull List<TextRange> ranges, @NotNull List<String> texts) {
+    if (ranges.isEmpty()) {
+      return;
+    }
+
+    VimPlugin.getMark().updateMarksFromReplace(editor, ranges, texts);
+
+    final Document document = editor.getDocument();
+    ApplicationManager.getApplication().runWriteAction(
+      () -> DocumentManager.INSTANCE.withoutListeners(document,
+        () -> DocumentUtil.executeInBulk(document, ranges.size() > BULK_REPLACE_COUNT, () -> {
+          // Going backwards, the offsets of the ranges that are left don't change
+          for (int i = ranges.size() - 1; i >= 0; i--) {
+            document.replaceString(ranges.get(i).getStartOffset(), ranges.get(i).getEndOffset(), texts.get(i));
+          }
+        })));
+
+    forceUpdateSearchHighlights();
+  }
+
   private @NotNull RangeHighlighter highlightConfirm(@NotNull Editor editor, int start, int end) {
     TextAttributes color = new TextAttributes(
       editor.getColorsScheme().getColor(EditorColors.SELECTION_FOREGROUND_COLOR),
@@ -1366,18 +1807,30 @@ public class SearchGroup implements PersistentStateComponent<Element> {
   private static void removeSearchHighlight(@NotNull Editor editor) {
     UserDataManager.setVimLastSearch(editor, null);
 
-    Collection<RangeHighlighter> ehl = UserDataManager.getVimLastHighlighters(editor);
-    if (ehl == null) {
-      return;
+    final SearchHighlightJob job = UserDataManager.getVimSearchHighlightJob(editor);
+    if (job != null) {
+      job.cancel();
     }
 
-    for (RangeHighlighter rh : ehl) {
-      editor.getMarkupModel().removeHighlighter(rh);
-    }
+    SearchHighlightIndex ehl = UserDataManager.getVimLastHighlighters(editor);
+    if (ehl != null) {
+      for (RangeHighlighter rh : ehl.getHighlighters()) {
+        editor.getMarkupModel().removeHighlighter(rh);
+      }
+
+      ehl.clear();
 
-    ehl.clear();
+      UserDataManager.setVimLastHighlighters(editor, null);
+    }
 
-    UserDataManager.setVimLastHighlighters(editor, null);
+    // The cached matches are only needed while some editor of the document shows them
+    final Document document = editor.getDocument();
+    for (Editor other : EditorFactory.getInstance().getEditors(document)) {
+      if (UserDataManager.getVimLastHighlighters(other) != null) {
+        return;
+      }
+    }
+    SearchResultCache.clear(document);
   }
 
   public void saveData(@NotNull Element element) {
@@ -1475,43 +1928,54 @@ public class SearchGroup implements PersistentStateComponent<Element> {
     }
 
     @Override
-    public void documentChanged(@NotNull DocumentEvent event) {
-      for (Project project : ProjectManager.getInstance().getOpenProjects()) {
-        final Document document = event.getDocument();
+    public void beforeDocumentChange(@NotNull DocumentEvent event) {
+      if (event.getOldLength() == 0) {
+        return;
+      }
 
-        for (Editor editor : EditorFactory.getInstance().getEditors(document, project)) {
-          Collection hls = UserDataManager.getVimLastHighlighters(editor);
-          if (hls == null) {
-            continue;
-          }
+      // The IDE invalidates the highlighters of the deleted text without moving them, and their stale offsets would
+      // break the order of the index, so they are removed while their offsets are still right
+      final int startOffset = event.getOffset();
+      final int endOffset = startOffset + event.getOldLength();
+      for (Editor editor : EditorFactory.getInstance().getEditors(event.getDocument())) {
+        final SearchHighlightIndex hls = UserDataManager.getVimLastHighlighters(editor);
+        if (hls == null) {
+          continue;
+        }
 
-          if (logger.isDebugEnabled()) {
-            logger.debug("hls=" + hls);
-            logger.debug("event=" + event);
-          }
+        for (RangeHighlighter highlighter : hls.removeInside(startOffset, endOffset)) {
+          editor.getMarkupModel().removeHighlighter(highlighter);
+        }
+      }
+    }
 
-          // We can only re-highlight whole lines, so clear any highlights in the affected lines
-          final LogicalPosition startPosition = editor.offsetToLogicalPosition(event.getOffset());
-          final LogicalPosition endPosition = editor.offsetToLogicalPosition(event.getOffset() + event.getNewLength());
-          final int startLineOffset = document.getLineStartOffset(startPosition.line);
-          final int endLineOffset = document.getLineEndOffset(endPosition.line);
-
-          final Iterator iter = hls.iterator();
-          while (iter.hasNext()) {
-            final RangeHighlighter highlighter = (RangeHighlighter) iter.next();
-            if (!highlighter.isValid() || (highlighter.getStartOffset() >= startLineOffset && highlighter.getEndOffset() <= endLineOffset)) {
-              iter.remove();
-              editor.getMarkupModel().removeHighlighter(highlighter);
-            }
-          }
+    @Override
+    public void documentChanged(@NotNull DocumentEvent event) {
+      // The editors of all projects, the matches in the changed lines are searched once for all of them
+      for (Editor editor : EditorFactory.getInstance().getEditors(event.getDocument())) {
+        final SearchHighlightIndex hls = UserDataManager.getVimLastHighlighters(editor);
+        if (hls == null) {
+          continue;
+        }
 
-          VimPlugin.getSearch().highlightSearchLines(editor, startPosition.line, endPosition.line);
+        if (logger.isDebugEnabled()) {
+          logger.debug("hls=" + hls.size());
+          logger.debug("event=" + event);
+        }
 
-          if (logger.isDebugEnabled()) {
-            hls = UserDataManager.getVimLastHighlighters(editor);
-            logger.debug("sl=" + startPosition.line + ", el=" + endPosition.line);
-            logger.debug("hls=" + hls);
+        if (event.isWholeTextReplaced()) {
+          // Highlighters are invalidated when the whole text is replaced, so there's nothing to move
+          for (RangeHighlighter highlighter : hls.getHighlighters()) {
+            editor.getMarkupModel().removeHighlighter(highlighter);
           }
+          hls.clear();
+        }
+
+        VimPlugin.getSearch().highlightChangedLines(editor, hls, event.getOffset(), event.getOffset() + event.getNewLength());
+        restartSearchHighlightJob(editor);
+
+        if (logger.isDebugEnabled()) {
+          logger.debug("hls=" + hls.size());
         }
       }
     }
@@ -1553,6 +2017,29 @@ public class SearchGroup implements PersistentStateComponent<Element> {
   private static final int RE_SEARCH = 2;
   private static final int RE_SUBST = 3;
 
+  /**
+   * Documents with more lines than this are highlighted starting from the visible area
+   */
+  private static final int LAZY_HIGHLIGHT_LINE_COUNT = 5000;
+
+  /**
+   * Searches of more lines than this are split into chunks of PARALLEL_SEARCH_CHUNK_SIZE lines, which are searched
+   * concurrently
+   */
+  private static final int PARALLEL_SEARCH_LINE_COUNT = 20000;
+  private static final int PARALLEL_SEARCH_CHUNK_SIZE = 5000;
+
+  /**
+   * A substitute that makes more replacements than this changes the document in bulk mode, so the editor is updated
+   * once at the end
+   */
+  private static final int BULK_REPLACE_COUNT = 100;
+
+  /**
+   * Milliseconds a search can take on the EDT before it is moved to the background, where it can be cancelled
+   */
+  private static final int SEARCH_PROGRESS_DELAY = 200;
+
   private static final int DIR_FORWARDS = 1;
   private static final int DIR_BACKWARDS = -1;
 
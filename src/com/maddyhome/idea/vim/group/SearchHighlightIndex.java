@@ -0,0 +1,142 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.group;
+
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search highlighters of a single editor, ordered by their offsets.
+ *
+ * Highlighters are range markers, so the IDE moves them together with the text when the document is changed and
+ * their order doesn't change. Search matches never overlap, which means both start and end offsets are sorted, and
+ * the highlighters affected by a change can be found with a binary search. A highlighter whose text is deleted is
+ * invalidated and keeps its old offsets, so it has to be removed before the change, see {@link #removeInside(int, int)}.
+ */
+public class SearchHighlightIndex {
+  private final @NotNull List<RangeHighlighter> highlighters = new ArrayList<>();
+
+  public boolean isEmpty() {
+    return highlighters.isEmpty();
+  }
+
+  public int size() {
+    return highlighters.size();
+  }
+
+  public @NotNull List<RangeHighlighter> getHighlighters() {
+    return Collections.unmodifiableList(highlighters);
+  }
+
+  public void add(@NotNull RangeHighlighter highlighter) {
+    // Matches are usually added in document order, so this is normally an append
+    final int startOffset = highlighter.getStartOffset();
+    final int size = highlighters.size();
+    if (size == 0 || highlighters.get(size - 1).getStartOffset() <= startOffset) {
+      highlighters.add(highlighter);
+    }
+    else {
+      highlighters.add(firstStartingAfter(startOffset), highlighter);
+    }
+  }
+
+  /**
+   * Checks if any highlighter intersects the given range. Touching ranges are treated as intersecting
+   */
+  public boolean intersects(int startOffset, int endOffset) {
+    final int index = firstEndingAtOrAfter(startOffset);
+    return index < highlighters.size() && highlighters.get(index).getStartOffset() <= endOffset;
+  }
+
+  /**
+   * Removes all highlighters that intersect or touch the given range
+   *
+   * @return The removed highlighters, in document order. The caller is responsible for removing them from the markup
+   * model
+   */
+  public @NotNull List<RangeHighlighter> removeIntersecting(int startOffset, int endOffset) {
+    final int from = firstEndingAtOrAfter(startOffset);
+    final int to = firstStartingAfter(endOffset);
+    if (from >= to) {
+      return Collections.emptyList();
+    }
+
+    final List<RangeHighlighter> range = highlighters.subList(from, to);
+    final List<RangeHighlighter> removed = new ArrayList<>(range);
+    range.clear();
+    return removed;
+  }
+
+  /**
+   * Removes all highlighters that lie completely inside the given range, e.g. the text that is about to be deleted
+   *
+   * @return The removed highlighters, in document order. The caller is responsible for removing them from the markup
+   * model
+   */
+  public @NotNull List<RangeHighlighter> removeInside(int startOffset, int endOffset) {
+    final int from = firstStartingAfter(startOffset - 1);
+    final int to = firstEndingAtOrAfter(endOffset + 1);
+    if (from >= to) {
+      return Collections.emptyList();
+    }
+
+    final List<RangeHighlighter> range = highlighters.subList(from, to);
+    final List<RangeHighlighter> removed = new ArrayList<>(range);
+    range.clear();
+    return removed;
+  }
+
+  public void clear() {
+    highlighters.clear();
+  }
+
+  private int firstEndingAtOrAfter(int offset) {
+    int low = 0;
+    int high = highlighters.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (highlighters.get(mid).getEndOffset() < offset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int firstStartingAfter(int offset) {
+    int low = 0;
+    int high = highlighters.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (highlighters.get(mid).getStartOffset() <= offset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
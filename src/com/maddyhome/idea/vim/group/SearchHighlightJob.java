@@ -0,0 +1,165 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.group;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Ref;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.maddyhome.idea.vim.common.TextRange;
+import com.maddyhome.idea.vim.ex.ranges.LineRange;
+import com.maddyhome.idea.vim.helper.UserDataManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Highlights the matches of the search pattern in the given lines of an editor, in the background.
+ *
+ * The lines are searched in chunks, each chunk in its own non-blocking read action, so a write action never has to
+ * wait for the search of the whole document. The highlighters for a chunk are added on the EDT as soon as the chunk
+ * is searched. The job is cancelled when the search highlights are removed, e.g. because the pattern changes.
+ *
+ * Each chunk has 'redrawtime' to find its matches. When a chunk runs out of time, the matches found so far are
+ * highlighted and the rest of the document is left alone, the pattern is probably too slow for this document.
+ */
+public class SearchHighlightJob {
+  private static final int CHUNK_SIZE = 2000;
+
+  private final @NotNull Editor editor;
+  private final @NotNull String pattern;
+  private final boolean ignoreCase;
+  private final @NotNull Deque<LineRange> pending = new ArrayDeque<>();
+  private volatile boolean cancelled = false;
+  private boolean searching = false;
+
+  SearchHighlightJob(@NotNull Editor editor, @NotNull String pattern, boolean ignoreCase) {
+    this.editor = editor;
+    this.pattern = pattern;
+    this.ignoreCase = ignoreCase;
+  }
+
+  public @NotNull String getPattern() {
+    return pattern;
+  }
+
+  public boolean isIgnoreCase() {
+    return ignoreCase;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isFinished() {
+    return cancelled || (pending.isEmpty() && !searching);
+  }
+
+  /**
+   * Adds the lines to search. Lines are searched in the order they are added. The chunks end at multiples of the chunk
+   * size, so that the jobs of other editors of the document search the same chunks and can share their matches
+   */
+  void addLines(int startLine, int endLine) {
+    int line = startLine;
+    while (line <= endLine) {
+      final int chunkEnd = Math.min((line / CHUNK_SIZE + 1) * CHUNK_SIZE - 1, endLine);
+      pending.addLast(new LineRange(line, chunkEnd));
+      line = chunkEnd + 1;
+    }
+  }
+
+  void start() {
+    final SearchHighlightJob previous = UserDataManager.getVimSearchHighlightJob(editor);
+    if (previous != null) {
+      previous.cancel();
+    }
+    UserDataManager.setVimSearchHighlightJob(editor, this);
+
+    if (ApplicationManager.getApplication().isUnitTestMode()) {
+      while (!isFinished()) {
+        highlightChunk(searchChunk(pending.removeFirst()));
+      }
+      finish();
+    }
+    else {
+      searchNextChunk();
+    }
+  }
+
+  public void cancel() {
+    cancelled = true;
+    pending.clear();
+    finish();
+  }
+
+  private void searchNextChunk() {
+    if (isFinished()) {
+      finish();
+      return;
+    }
+
+    final LineRange chunk = pending.removeFirst();
+    searching = true;
+    ReadAction.nonBlocking(() -> searchChunk(chunk))
+      .expireWhen(() -> cancelled || editor.isDisposed())
+      .finishOnUiThread(ModalityState.defaultModalityState(), found -> {
+        searching = false;
+        highlightChunk(found);
+        searchNextChunk();
+      })
+      .submit(AppExecutorUtil.getAppExecutorService());
+  }
+
+  /**
+   * Returns the matches in the lines, and whether the search ran out of time
+   */
+  private @NotNull Pair<List<TextRange>, Boolean> searchChunk(@NotNull LineRange chunk) {
+    final Ref<Boolean> timedOut = Ref.create(false);
+    final List<TextRange> results = SearchResultCache.findAll(editor, pattern, chunk.startLine, chunk.endLine,
+                                                              ignoreCase, SearchGroup.getHighlightDeadline(), timedOut);
+    return Pair.create(results, timedOut.get());
+  }
+
+  private void highlightChunk(@NotNull Pair<List<TextRange>, Boolean> chunk) {
+    final List<TextRange> results = new ArrayList<>(chunk.first);
+    final SearchHighlightIndex index = UserDataManager.getVimLastHighlighters(editor);
+    if (index != null) {
+      // A multi-line match at the edge of a chunk can run into a match that is already highlighted
+      results.removeIf(range -> index.intersects(range.getStartOffset(), range.getEndOffset()));
+    }
+    SearchGroup.highlightSearchResults(editor, pattern, results, -1);
+
+    if (chunk.second) {
+      SearchGroup.showHighlightTimeoutMessage();
+      cancel();
+    }
+  }
+
+  private void finish() {
+    if (UserDataManager.getVimSearchHighlightJob(editor) == this) {
+      UserDataManager.setVimSearchHighlightJob(editor, null);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.group;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Ref;
+import com.maddyhome.idea.vim.common.TextRange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The matches of the search pattern in a document, shared by all editors of the document, e.g. split views, so that
+ * highlighting the matches in several editors searches the lines only once.
+ *
+ * The matches are kept by line range for one pattern and one modification stamp of the document. A search with
+ * another pattern, or after the document was changed, starts over. A search that ran out of time isn't kept. Only the
+ * most recently used line ranges are kept, and the cache is dropped when the matches aren't highlighted in any editor
+ * of the document anymore. The matches are returned as an unmodifiable list, since they are shared.
+ */
+public final class SearchResultCache {
+  private static final Key<SearchResultCache> SEARCH_RESULT_CACHE = Key.create("VimSearchResultCache");
+  private static final int MAX_CACHED_RANGES = 32;
+  private static final AtomicInteger searchCount = new AtomicInteger();
+
+  private final @NotNull String pattern;
+  private final boolean ignoreCase;
+  private final long modificationStamp;
+  private final @NotNull Map<Long, List<TextRange>> results = new LinkedHashMap<Long, List<TextRange>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, List<TextRange>> eldest) {
+      return size() > MAX_CACHED_RANGES;
+    }
+  };
+
+  private SearchResultCache(@NotNull String pattern, boolean ignoreCase, long modificationStamp) {
+    this.pattern = pattern;
+    this.ignoreCase = ignoreCase;
+    this.modificationStamp = modificationStamp;
+  }
+
+  /**
+   * Like {@link SearchGroup#findAll(Editor, String, int, int, boolean, long, Ref)}, but returns the matches that
+   * were found for another editor of the document, if there are any
+   */
+  static @NotNull List<TextRange> findAll(@NotNull Editor editor,
+                                          @NotNull String pattern,
+                                          int startLine,
+                                          int endLine,
+                                          boolean ignoreCase,
+                                          long deadline,
+                                          @Nullable Ref<Boolean> timedOut) {
+    // Patterns like \%# depend on the editor
+    if (pattern.contains("\\%")) {
+      searchCount.incrementAndGet();
+      return SearchGroup.findAll(editor, pattern, startLine, endLine, ignoreCase, deadline, timedOut);
+    }
+
+    final Document document = editor.getDocument();
+    final long modificationStamp = document.getModificationStamp();
+    final Long lines = ((long)startLine << 32) | (endLine & 0xFFFFFFFFL);
+    SearchResultCache cache = document.getUserData(SEARCH_RESULT_CACHE);
+    if (cache != null && cache.isFor(pattern, ignoreCase, modificationStamp)) {
+      synchronized (cache) {
+        final List<TextRange> cached = cache.results.get(lines);
+        if (cached != null) {
+          return cached;
+        }
+      }
+    }
+
+    final Ref<Boolean> searchTimedOut = Ref.create(false);
+    searchCount.incrementAndGet();
+    final List<TextRange> found =
+      SearchGroup.findAll(editor, pattern, startLine, endLine, ignoreCase, deadline, searchTimedOut);
+    if (searchTimedOut.get()) {
+      if (timedOut != null) {
+        timedOut.set(true);
+      }
+      return found;
+    }
+
+    final List<TextRange> res = Collections.unmodifiableList(found);
+    cache = document.getUserData(SEARCH_RESULT_CACHE);
+    if (cache == null || !cache.isFor(pattern, ignoreCase, modificationStamp)) {
+      cache = new SearchResultCache(pattern, ignoreCase, modificationStamp);
+      document.putUserData(SEARCH_RESULT_CACHE, cache);
+    }
+    synchronized (cache) {
+      cache.results.put(lines, res);
+    }
+    return res;
+  }
+
+  /**
+   * Drops the matches that were kept for the document
+   */
+  static void clear(@NotNull Document document) {
+    document.putUserData(SEARCH_RESULT_CACHE, null);
+  }
+
+  /**
+   * The number of searches that weren't answered from the cache
+   */
+  @TestOnly
+  public static int getSearchCount() {
+    return searchCount.get();
+  }
+
+  @TestOnly
+  public static boolean isCached(@NotNull Document document) {
+    return document.getUserData(SEARCH_RESULT_CACHE) != null;
+  }
+
+  private boolean isFor(@NotNull String pattern, boolean ignoreCase, long modificationStamp) {
+    return this.modificationStamp == modificationStamp && this.ignoreCase == ignoreCase &&
+           this.pattern.equals(pattern);
+  }
+}
@@ -32,6 +32,7 @@ object DocumentManager {
   init {
     docListeners += MarkGroup.MarkUpdater.INSTANCE
     docListeners += SearchGroup.DocumentSearchListener.INSTANCE
+    docListeners += WordIndex.Updater.INSTANCE
   }
 
   fun addListeners(doc: Document) {
@@ -52,4 +53,22 @@ object DocumentManager {
       EventFacade.getInstance().removeDocumentListener(doc, docListener)
     }
   }
+
+  /**
+   * Runs a change of the document that updates the marks and the search highlights itself, so the listeners don't
+   * handle each of its events
+   */
+  fun withoutListeners(doc: Document, action: Runnable) {
+    if (doc.getUserData(LISTENER_MARKER) == null) {
+      action.run()
+      return
+    }
+
+    removeListeners(doc)
+    try {
+      action.run()
+    } finally {
+      addListeners(doc)
+    }
+  }
 }
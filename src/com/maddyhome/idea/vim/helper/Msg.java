@@ -29,6 +29,7 @@ public interface Msg {
   String e_argforb = "e_argforb";
   String e_noprev = "e_noprev";
   String e_nopresub = "e_nopresub";
+  String e_noprevre = "e_noprevre";
   String E191 = "E191";
   String e_backrange = "e_backrange";
   String E146 = "E146";
@@ -69,6 +70,10 @@ public interface Msg {
   String E384 = "E384";
   String E385 = "E385";
   String e_patnotf2 = "e_patnotf2";
+  String e_interr = "e_interr";
+  String e_redrawtime = "e_redrawtime";
+  String searching = "searching";
+  String running_command = "running_command";
   String unkopt = "unkopt";
   String e_invarg = "e_invarg";
   String E475 = "E475";
@@ -38,7 +38,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -323,21 +322,18 @@ public class SearchHelper {
                                        boolean allowInString) {
     int res = -1;
     int initialPos = pos;
-    Function<Integer, Integer> inCheckPosF = x -> dir == Direction.BACK && x > 0 ? x - 1 : x + 1;
-    final int inCheckPos = inCheckPosF.apply(pos);
+    final int inCheckPos = inCheckPos(pos, dir);
     boolean inString = checkInString(chars, inCheckPos, true);
     boolean initialInString = inString;
     boolean inChar = checkInString(chars, inCheckPos, false);
     int stack = 0;
     // Search to start or end of file, as appropriate
-    Set<Character> charsToSearch = new HashSet<>(Arrays.asList('\'', '"', '\n', match, found));
     while (pos >= 0 && pos < chars.length() && cnt > 0) {
-      Pair<Character, Integer> ci = findPositionOfFirstCharacter(chars, pos, charsToSearch, false, dir);
-      if (ci == null) {
+      pos = findBlockCharacter(chars, pos, found, match, dir);
+      if (pos == -1) {
         return -1;
       }
-      Character c = ci.first;
-      pos = ci.second;
+      char c = chars.charAt(pos);
       // If we found a match and we're not in a string...
       if (c == match && (allowInString ? initialInString == inString : !inString) && !inChar) {
         // We found our match
@@ -362,10 +358,10 @@ public class SearchHelper {
         }
         // We found the start/end of a string
         else if (!inChar) {
-          inString = checkInString(chars, inCheckPosF.apply(pos), true);
+          inString = checkInString(chars, inCheckPos(pos, dir), true);
         }
         else if (!inString) {
-          inChar = checkInString(chars, inCheckPosF.apply(pos), false);
+          inChar = checkInString(chars, inCheckPos(pos, dir), false);
         }
       }
       pos += dir.toInt();
@@ -374,6 +370,33 @@ public class SearchHelper {
     return res;
   }
 
+  /**
+   * The position to check whether the text is in a string or a character, next to pos in the search direction
+   */
+  private static int inCheckPos(int pos, @NotNull Direction dir) {
+    return dir == Direction.BACK && pos > 0 ? pos - 1 : pos + 1;
+  }
+
+  /**
+   * Finds the first quote, new line, [found] or [match] character that isn't escaped
+   */
+  private static int findBlockCharacter(@NotNull CharSequence chars,
+                                        int pos,
+                                        char found,
+                                        char match,
+                                        @NotNull Direction direction) {
+    int dir = direction.toInt();
+    while (pos >= 0 && pos < chars.length()) {
+      final char c = chars.charAt(pos);
+      if ((c == '\'' || c == '"' || c == '\n' || c == found || c == match) &&
+          (pos == 0 || isQuoteWithoutEscape(chars, pos, c))) {
+        return pos;
+      }
+      pos += dir;
+    }
+    return -1;
+  }
+
   /**
    * Returns true if [quote] is at this [pos] and it's not escaped (like \")
    */
@@ -429,22 +452,6 @@ public class SearchHelper {
     return cnt;
   }
 
-  public static @Nullable Pair<Character, Integer> findPositionOfFirstCharacter(@NotNull CharSequence chars,
-                                                                                int pos,
-                                                                                final Set<Character> needles,
-                                                                                boolean searchEscaped,
-                                                                                @NotNull Direction direction) {
-    int dir = direction.toInt();
-    while (pos >= 0 && pos < chars.length()) {
-      final char c = chars.charAt(pos);
-      if (needles.contains(c) && (pos == 0 || searchEscaped || isQuoteWithoutEscape(chars, pos, c))) {
-        return Pair.create(c, pos);
-      }
-      pos += dir;
-    }
-    return null;
-  }
-
   private static int findCharacterPosition(@NotNull CharSequence chars,
                                            int pos,
                                            final char c,
@@ -811,9 +818,7 @@ public class SearchHelper {
    * This counts all the words in the file.
    */
   public static @NotNull CountPosition countWords(@NotNull Editor editor) {
-    int size = EditorHelper.getFileSize(editor);
-
-    return countWords(editor, 0, size);
+    return WordIndex.getInstance(editor.getDocument()).countWords(editor.getCaretModel().getOffset());
   }
 
   /**
@@ -865,6 +870,13 @@ public class SearchHelper {
     CharSequence chars = editor.getDocument().getCharsSequence();
     final int size = EditorHelper.getFileSize(editor);
 
+    if (count >= WordIndex.LARGE_WORD_COUNT) {
+      final int res = WordIndex.getInstance(editor.getDocument()).findNextWord(searchFrom, count, bigWord);
+      if (res != -1) {
+        return res;
+      }
+    }
+
     return findNextWord(chars, searchFrom, size, count, bigWord, false);
   }
 
@@ -888,12 +900,12 @@ public class SearchHelper {
     return res;
   }
 
-  private static int findNextWordOne(@NotNull CharSequence chars,
-                                     int pos,
-                                     int size,
-                                     int step,
-                                     boolean bigWord,
-                                     boolean spaceWords) {
+  static int findNextWordOne(@NotNull CharSequence chars,
+                             int pos,
+                             int size,
+                             int step,
+                             boolean bigWord,
+                             boolean spaceWords) {
     boolean found = false;
     pos = pos < size ? pos : Math.min(size, chars.length() - 1);
     // For back searches, skip any current whitespace so we start at the end of a word
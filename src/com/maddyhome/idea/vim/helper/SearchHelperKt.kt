@@ -18,146 +18,252 @@
 
 package com.maddyhome.idea.vim.helper
 
-import com.maddyhome.idea.vim.helper.SearchHelper.Direction
-import com.maddyhome.idea.vim.helper.SearchHelper.findPositionOfFirstCharacter
-
-private data class State(val position: Int, val trigger: Char, val inQuote: Boolean?, val lastOpenSingleQuotePos: Int)
+import com.intellij.util.text.ImmutableCharSequence
+import java.lang.ref.WeakReference
+import java.util.*
 
 // bounds are considered inside corresponding quotes
 fun checkInString(chars: CharSequence, currentPos: Int, str: Boolean): Boolean {
-  val begin = findPositionOfFirstCharacter(chars, currentPos, setOf('\n'), false, Direction.BACK)?.second ?: 0
-  val changes = quoteChanges(chars, begin)
-  // TODO: here we need to keep only the latest element in beforePos (if any) and
-  //   don't need atAndAfterPos to be eagerly collected
-  var (beforePos, atAndAfterPos) = changes.partition { it.position < currentPos }
-
-  var (atPos, afterPos) = atAndAfterPos.partition { it.position == currentPos }
-  assert(atPos.size <= 1) { "Multiple characters at position $currentPos in string $chars" }
-  if (atPos.isNotEmpty()) {
-    val atPosChange = atPos[0]
-    if (afterPos.isEmpty()) {
-      // it is situation when cursor is on closing quote, so we must consider that we are inside quotes pair
-      afterPos = afterPos.toMutableList()
-      afterPos.add(atPosChange)
-    } else {
-      // it is situation when cursor is on opening quote, so we must consider that we are inside quotes pair
-      beforePos = beforePos.toMutableList()
-      beforePos.add(atPosChange)
-    }
+  val line = QuoteScanner.lineAt(chars, currentPos) ?: return false
+  return line.isInString(currentPos, str)
+}
+
+/**
+ * Finds the lines of a text that [checkInString] looks at and keeps their quotes, so the quotes of a line are found
+ * in one pass however often the line is checked. The quotes of a text are kept until it changes, which is when a
+ * document has a new immutable text, and only for a few recent texts.
+ */
+private object QuoteScanner {
+  private const val CACHED_TEXTS = 2
+
+  // Most recently used first
+  private val cache = ArrayList<TextQuotes>(CACHED_TEXTS + 1)
+
+  /**
+   * Returns the quotes of the line at [pos], or null if [pos] is at the new line that ends it
+   */
+  fun lineAt(chars: CharSequence, pos: Int): LineQuotes? {
+    if (pos < chars.length && chars[pos] == '\n' && !isEscaped(chars, pos)) return null
+    return textQuotes(chars).lineAt(chars, pos)
   }
 
-  val lastBeforePos = beforePos.lastOrNull()
-
-  // if opening quote was found before pos (inQuote=true), it doesn't mean pos is in string, we need
-  // to find closing quote to be sure
-  var posInQuote = lastBeforePos?.inQuote?.let { if (it) null else it }
-
-  val lastOpenSingleQuotePosBeforeCurrentPos = lastBeforePos?.lastOpenSingleQuotePos ?: -1
-  var posInChar = if (lastOpenSingleQuotePosBeforeCurrentPos == -1) false else null
-
-  var inQuote: Boolean? = null
-
-  for((_, trigger, inQuoteAfter, lastOpenSingleQuotePosAfter) in afterPos) {
-    inQuote = inQuoteAfter
-    if (posInQuote != null && posInChar != null) break
-    if (posInQuote == null && inQuoteAfter != null) {
-      // if we found double quote
-      if (trigger == '"') {
-        // then previously it has opposite value
-        posInQuote = !inQuoteAfter
-        // if we found single quote
-      } else if (trigger == '\'') {
-        // then we found closing single quote
-        posInQuote = inQuoteAfter
-      }
-    }
-    if (posInChar == null && lastOpenSingleQuotePosAfter != lastOpenSingleQuotePosBeforeCurrentPos) {
-      // if we found double quote and we reset position of last single quote
-      if (trigger == '"' && lastOpenSingleQuotePosAfter == -1) {
-        // then it means previously there supposed to be open single quote
-        posInChar = false
-        // if we found single quote
-      } else if (trigger == '\'') {
-        // if we reset position of last single quote
-        // it means we found closing single quote
-        // else it means we found opening single quote
-        posInChar = lastOpenSingleQuotePosAfter == -1
+  @Synchronized
+  private fun textQuotes(chars: CharSequence): TextQuotes {
+    // A mutable text may be changed under the same instance, so it's never cached
+    if (chars !is String && chars !is ImmutableCharSequence) return TextQuotes(chars)
+
+    for (i in cache.indices) {
+      val quotes = cache[i]
+      if (quotes.text.get() === chars) {
+        if (i > 0) {
+          cache.removeAt(i)
+          cache.add(0, quotes)
+        }
+        return quotes
       }
     }
+
+    val quotes = TextQuotes(chars)
+    cache.add(0, quotes)
+    if (cache.size > CACHED_TEXTS) cache.removeAt(CACHED_TEXTS)
+    return quotes
   }
+}
+
+private class TextQuotes(chars: CharSequence) {
+  val text = WeakReference(chars)
+  private val lines = TreeMap<Int, LineQuotes>()
 
-  return if (str) posInQuote != null && posInQuote && (inQuote == null || !inQuote) else posInChar != null && posInChar
+  @Synchronized
+  fun lineAt(chars: CharSequence, pos: Int): LineQuotes {
+    val cached = lines.floorEntry(pos)?.value
+    if (cached != null && pos <= cached.end) return cached
+
+    // The line begins after the previous new line that isn't escaped
+    var begin = minOf(pos, chars.length) - 1
+    while (begin >= 0 && (chars[begin] != '\n' || isEscaped(chars, begin))) {
+      begin--
+    }
+    val line = LineQuotes(chars, begin + 1)
+    lines[line.begin] = line
+    return line
+  }
 }
 
-// yields changes of inQuote and lastOpenSingleQuotePos during while iterating over chars
-// rules are that:
-// - escaped quotes are skipped
-// - single quoted group may enclose only one character, maybe escaped,
-// - so distance between opening and closing single quotes cannot be more than 3
-// - bounds are considered inside corresponding quotes
-private fun quoteChanges(chars: CharSequence, begin: Int) = sequence {
-  // position of last found unpaired single quote
-  var lastOpenSingleQuotePos = -1
-  // whether we are in double quotes
-  // true - definitely yes
-  // false - definitely no
-  // null - maybe yes, in case we found such combination: '"
-  //   in that situation it may be double quote inside single quotes, so we cannot threat it as double quote pair open/close
-  var inQuote: Boolean? = false
-  val charsToSearch = setOf('\'', '"', '\n')
-  var found = findPositionOfFirstCharacter(chars, begin, charsToSearch, false, Direction.FORWARD)
-  while (found != null && found.first != '\n') {
-    val i = found.second
-
-    val c = found.first
-    when (c) {
-      '"' -> {
-        // if [maybe] in quote, then we know we found closing quote, so now we surely are not in quote
-        if (inQuote == null || inQuote) {
-          // we just found closing double quote
-          inQuote = false
-          // reset last found single quote, as it was in string literal
-          lastOpenSingleQuotePos = -1
-          // if we previously found unclosed single quote
-        } else if (lastOpenSingleQuotePos >= 0) {
-          // ...but we are too far from it
-          if (i - lastOpenSingleQuotePos > 2) {
-            // then it definitely was not opening single quote
-            lastOpenSingleQuotePos = -1
-            // and we found opening double quote
-            inQuote = true
-          } else {
-            // else we don't know if we inside double or single quotes or not
-            inQuote = null
+/**
+ * The double and single quotes of a line with the changes of inQuote and lastOpenSingleQuotePos at each of them.
+ * The rules are that:
+ * - escaped quotes are skipped
+ * - single quoted group may enclose only one character, maybe escaped,
+ * - so distance between opening and closing single quotes cannot be more than 3
+ * - bounds are considered inside corresponding quotes
+ */
+private class LineQuotes(chars: CharSequence, val begin: Int) {
+  /** The offset of the new line that ends the line, or the length of the text */
+  val end: Int
+
+  private var size = 0
+  private var positions = IntArray(8)
+  private var triggers = CharArray(8)
+  // whether we are in double quotes after the quote, see [IN_QUOTE], [NOT_IN_QUOTE] and [MAYBE_IN_QUOTE]
+  private var inQuotes = ByteArray(8)
+  // position of last found unpaired single quote after the quote
+  private var lastOpenSingleQuotePositions = IntArray(8)
+
+  init {
+    var lastOpenSingleQuotePos = -1
+    var inQuote = NOT_IN_QUOTE
+    var backslashes = 0
+    var i = begin
+    while (i < chars.length) {
+      val c = chars[i]
+      if (c == '\\') {
+        backslashes++
+      } else {
+        val escaped = backslashes % 2 != 0
+        backslashes = 0
+        if (!escaped) {
+          if (c == '\n') break
+          if (c == '"') {
+            // if [maybe] in quote, then we know we found closing quote, so now we surely are not in quote
+            if (inQuote != NOT_IN_QUOTE) {
+              // we just found closing double quote
+              inQuote = NOT_IN_QUOTE
+              // reset last found single quote, as it was in string literal
+              lastOpenSingleQuotePos = -1
+              // if we previously found unclosed single quote
+            } else if (lastOpenSingleQuotePos >= 0) {
+              // ...but we are too far from it
+              if (i - lastOpenSingleQuotePos > 2) {
+                // then it definitely was not opening single quote
+                lastOpenSingleQuotePos = -1
+                // and we found opening double quote
+                inQuote = IN_QUOTE
+              } else {
+                // else we don't know if we inside double or single quotes or not
+                inQuote = MAYBE_IN_QUOTE
+              }
+              // we were not in double nor in single quote, so now we are in double quote
+            } else {
+              inQuote = IN_QUOTE
+            }
+            add(i, c, inQuote, lastOpenSingleQuotePos)
+          } else if (c == '\'') {
+            // if we previously found unclosed single quote
+            if (lastOpenSingleQuotePos >= 0) {
+              // ...but we are too far from it
+              if (i - lastOpenSingleQuotePos > 3) {
+                // ... forget about it and threat current one as unclosed
+                lastOpenSingleQuotePos = i
+              } else {
+                // else we found closing single quote
+                lastOpenSingleQuotePos = -1
+                // and if we didn't know whether we are in double quote or not
+                if (inQuote == MAYBE_IN_QUOTE) {
+                  // then now we are definitely not in
+                  inQuote = NOT_IN_QUOTE
+                }
+              }
+            } else {
+              // we found opening single quote
+              lastOpenSingleQuotePos = i
+            }
+            add(i, c, inQuote, lastOpenSingleQuotePos)
           }
-          // we were not in double nor in single quote, so now we are in double quote
-        } else {
-          inQuote = true
         }
       }
-      '\'' -> {
-        // if we previously found unclosed single quote
-        if (lastOpenSingleQuotePos >= 0) {
-          // ...but we are too far from it
-          if (i - lastOpenSingleQuotePos > 3) {
-            // ... forget about it and threat current one as unclosed
-            lastOpenSingleQuotePos = i
-          } else {
-            // else we found closing single quote
-            lastOpenSingleQuotePos = -1
-            // and if we didn't know whether we are in double quote or not
-            if (inQuote == null) {
-              // then now we are definitely not in
-              inQuote = false
-            }
-          }
-        } else {
-          // we found opening single quote
-          lastOpenSingleQuotePos = i
+      i++
+    }
+    end = i
+  }
+
+  private fun add(position: Int, trigger: Char, inQuote: Byte, lastOpenSingleQuotePos: Int) {
+    if (size == positions.size) {
+      val newSize = size * 2
+      positions = positions.copyOf(newSize)
+      triggers = triggers.copyOf(newSize)
+      inQuotes = inQuotes.copyOf(newSize)
+      lastOpenSingleQuotePositions = lastOpenSingleQuotePositions.copyOf(newSize)
+    }
+    positions[size] = position
+    triggers[size] = trigger
+    inQuotes[size] = inQuote
+    lastOpenSingleQuotePositions[size] = lastOpenSingleQuotePos
+    size++
+  }
+
+  fun isInString(currentPos: Int, str: Boolean): Boolean {
+    // The quotes before currentPos are [0, afterStart) and the ones after it are [afterStart, size)
+    var afterStart = Arrays.binarySearch(positions, 0, size, currentPos)
+    if (afterStart >= 0) {
+      // if the cursor is on the last quote, it is on a closing quote, so we must consider that we are inside quotes
+      // pair. Otherwise it is on an opening quote, so we must consider that we are inside quotes pair too.
+      if (afterStart + 1 < size) afterStart++
+    } else {
+      afterStart = -afterStart - 1
+    }
+    val lastBeforePos = afterStart - 1
+
+    // if opening quote was found before pos (inQuote=true), it doesn't mean pos is in string, we need
+    // to find closing quote to be sure
+    var posInQuote: Boolean? = if (lastBeforePos >= 0 && inQuotes[lastBeforePos] == NOT_IN_QUOTE) false else null
+
+    val lastOpenSingleQuotePosBeforeCurrentPos = if (lastBeforePos >= 0) lastOpenSingleQuotePositions[lastBeforePos] else -1
+    var posInChar = if (lastOpenSingleQuotePosBeforeCurrentPos == -1) false else null
+
+    var inQuote = MAYBE_IN_QUOTE
+
+    for (i in afterStart until size) {
+      val trigger = triggers[i]
+      val inQuoteAfter = inQuotes[i]
+      val lastOpenSingleQuotePosAfter = lastOpenSingleQuotePositions[i]
+      inQuote = inQuoteAfter
+      if (posInQuote != null && posInChar != null) break
+      if (posInQuote == null && inQuoteAfter != MAYBE_IN_QUOTE) {
+        // if we found double quote
+        if (trigger == '"') {
+          // then previously it has opposite value
+          posInQuote = inQuoteAfter != IN_QUOTE
+          // if we found single quote
+        } else if (trigger == '\'') {
+          // then we found closing single quote
+          posInQuote = inQuoteAfter == IN_QUOTE
+        }
+      }
+      if (posInChar == null && lastOpenSingleQuotePosAfter != lastOpenSingleQuotePosBeforeCurrentPos) {
+        // if we found double quote and we reset position of last single quote
+        if (trigger == '"' && lastOpenSingleQuotePosAfter == -1) {
+          // then it means previously there supposed to be open single quote
+          posInChar = false
+          // if we found single quote
+        } else if (trigger == '\'') {
+          // if we reset position of last single quote
+          // it means we found closing single quote
+          // else it means we found opening single quote
+          posInChar = lastOpenSingleQuotePosAfter == -1
         }
       }
     }
-    yield(State(i, c, inQuote, lastOpenSingleQuotePos))
-    found = findPositionOfFirstCharacter(chars, i + Direction.FORWARD.toInt(), charsToSearch, false, Direction.FORWARD)
+
+    return if (str) posInQuote == true && inQuote != IN_QUOTE else posInChar == true
+  }
+
+  companion object {
+    // true - definitely yes
+    const val IN_QUOTE: Byte = 1
+    // false - definitely no
+    const val NOT_IN_QUOTE: Byte = 0
+    // null - maybe yes, in case we found such combination: '"
+    //   in that situation it may be double quote inside single quotes, so we cannot threat it as double quote pair open/close
+    const val MAYBE_IN_QUOTE: Byte = 2
+  }
+}
+
+private fun isEscaped(chars: CharSequence, pos: Int): Boolean {
+  var backslashes = 0
+  var i = pos
+  while (i-- > 0 && chars[i] == '\\') {
+    backslashes++
   }
+  return backslashes % 2 != 0
 }
@@ -24,12 +24,13 @@ package com.maddyhome.idea.vim.helper
 import com.intellij.openapi.editor.Caret
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.RangeMarker
-import com.intellij.openapi.editor.markup.RangeHighlighter
 import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.UserDataHolder
 import com.maddyhome.idea.vim.command.CommandState
 import com.maddyhome.idea.vim.command.SelectionType
 import com.maddyhome.idea.vim.ex.ExOutputModel
+import com.maddyhome.idea.vim.group.SearchHighlightIndex
+import com.maddyhome.idea.vim.group.SearchHighlightJob
 import com.maddyhome.idea.vim.group.visual.VisualChange
 import com.maddyhome.idea.vim.group.visual.vimLeadSelectionOffset
 import com.maddyhome.idea.vim.ui.ExOutputPanel
@@ -75,11 +76,13 @@ fun unInitializeEditor(editor: Editor) {
   editor.vimCommandState = null
   editor.vimMorePanel = null
   editor.vimExOutput = null
+  editor.vimSearchHighlightJob?.cancel()
   editor.vimLastHighlighters = null
 }
 
 var Editor.vimLastSearch: String? by userData()
-var Editor.vimLastHighlighters: Collection<RangeHighlighter>? by userData()
+var Editor.vimLastHighlighters: SearchHighlightIndex? by userData()
+var Editor.vimSearchHighlightJob: SearchHighlightJob? by userData()
 var Editor.vimIncsearchCurrentMatchOffset: Int? by userData()
 /***
  * @see :help visualmode()
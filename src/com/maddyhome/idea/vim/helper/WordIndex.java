@@ -0,0 +1,296 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.helper;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Key;
+import com.maddyhome.idea.vim.option.OptionsManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The word starts of a document, as found by stepping forward through the words from the start of the document.
+ * Used to count the words for g CTRL-G and to make word motions with a large count.
+ *
+ * Stepping from one word start to the next only looks at the text between them, so after a change the word starts
+ * before the changed line are kept. The words are followed again from the last of them until a word start after the
+ * change is one of the old word starts, and the old word starts from there on are shifted by the length of the change.
+ * The index is built the first time it is needed and kept up to date by {@link Updater}. If the document was changed
+ * without the updater, the index is built again.
+ */
+public class WordIndex {
+  /**
+   * The smallest count of a word motion that uses the index
+   */
+  public static final int LARGE_WORD_COUNT = 100;
+
+  private static final Key<WordIndex> WORD_INDEX = Key.create("VimWordIndex");
+
+  private final @NotNull Document document;
+  private @Nullable WordStarts bigWords;
+  private @Nullable WordStarts words;
+  /**
+   * The value of 'iskeyword' that the (small) words were found with
+   */
+  private @Nullable String wordsKeywords;
+
+  private WordIndex(@NotNull Document document) {
+    this.document = document;
+  }
+
+  public static @NotNull WordIndex getInstance(@NotNull Document document) {
+    WordIndex index = document.getUserData(WORD_INDEX);
+    if (index == null) {
+      index = new WordIndex(document);
+      document.putUserData(WORD_INDEX, index);
+    }
+    return index;
+  }
+
+  /**
+   * Counts the words of the document like {@link SearchHelper#countWords(CharSequence, int, int, int)} for the whole
+   * document
+   *
+   * @param offset The offset to find the word number of
+   */
+  public @NotNull SearchHelper.CountPosition countWords(int offset) {
+    final WordStarts starts = getWordStarts(true);
+    final int index = starts.firstAtOrAfter(offset);
+    final int position;
+    if (index < starts.count) {
+      if (starts.offsets[index] == offset) {
+        position = index + 2;
+      }
+      else {
+        position = index == 0 ? 1 : index + 1;
+      }
+    }
+    else {
+      position = starts.last == offset ? starts.count + 1 : 0;
+    }
+
+    return new SearchHelper.CountPosition(starts.count + 1, position);
+  }
+
+  /**
+   * Finds the count-th next word like {@link SearchHelper#findNextWord} for a positive count
+   *
+   * @return The offset of the word, or -1 if it can't be found in the index, e.g. because the motion stops at the end
+   * of the file
+   */
+  public int findNextWord(int pos, int count, boolean bigWord) {
+    final WordStarts starts = getWordStarts(bigWord);
+    final int res = SearchHelper.findNextWordOne(document.getCharsSequence(), pos, starts.size, 1, bigWord, false);
+    final int index = Arrays.binarySearch(starts.offsets, 0, starts.count, res);
+    if (index < 0 || res == pos) {
+      return -1;
+    }
+
+    final int target = index + count - 1;
+    if (target >= starts.count || starts.offsets[target] >= starts.size - 1) {
+      return -1;
+    }
+    return starts.offsets[target];
+  }
+
+  private @NotNull WordStarts getWordStarts(boolean bigWord) {
+    final long stamp = document.getModificationStamp();
+    if (bigWord) {
+      if (bigWords == null || bigWords.stamp != stamp) {
+        bigWords = new WordStarts(document, true);
+      }
+      return bigWords;
+    }
+
+    final String keywords = OptionsManager.INSTANCE.getIskeyword().getValue();
+    if (words == null || words.stamp != stamp || !keywords.equals(wordsKeywords)) {
+      words = new WordStarts(document, false);
+      wordsKeywords = keywords;
+    }
+    return words;
+  }
+
+  private void update(@NotNull DocumentEvent event) {
+    if (bigWords != null && !bigWords.update(event)) {
+      bigWords = null;
+    }
+    if (words != null && !words.update(event)) {
+      words = null;
+    }
+  }
+
+  /**
+   * The size of the text that word motions search in, like {@link EditorHelper#getFileSize}
+   */
+  private static int getFileSize(@NotNull CharSequence chars) {
+    final int len = chars.length();
+    return len == 0 || chars.charAt(len - 1) != '\n' ? len : len - 1;
+  }
+
+  private static final class WordStarts {
+    private final boolean bigWord;
+    private int[] offsets = new int[64];
+    private int count;
+    /**
+     * The result of the step that ended the words, i.e. that didn't find another word
+     */
+    private int last;
+    private int size;
+    private long stamp;
+
+    WordStarts(@NotNull Document document, boolean bigWord) {
+      this.bigWord = bigWord;
+      final CharSequence chars = document.getCharsSequence();
+      size = getFileSize(chars);
+      stamp = document.getModificationStamp();
+
+      int res = 0;
+      int prev = -1;
+      while (true) {
+        res = SearchHelper.findNextWordOne(chars, res, size, 1, bigWord, false);
+        if (res == 0 || res > size || res == prev) {
+          break;
+        }
+        add(res);
+        prev = res;
+      }
+      last = res;
+    }
+
+    /**
+     * Updates the word starts after the document was changed
+     *
+     * @return False if the word starts don't belong to the text before the change
+     */
+    boolean update(@NotNull DocumentEvent event) {
+      if (stamp != event.getOldTimeStamp()) {
+        return false;
+      }
+
+      final Document document = event.getDocument();
+      final CharSequence chars = document.getCharsSequence();
+      final int newSize = getFileSize(chars);
+      final int delta = event.getNewLength() - event.getOldLength();
+      final int changeEnd = event.getOffset() + event.getNewLength();
+      final int lineStart = document.getLineStartOffset(document.getLineNumber(event.getOffset()));
+      // The old word starts after the change are only valid if the change didn't add or remove the last new line
+      final boolean canReuse = newSize - size == delta;
+
+      // The word starts at the end of the text may have been found by stopping there, so they're found again too
+      final int keep = firstAtOrAfter(Math.min(lineStart, Math.min(size, newSize) - 1));
+      int[] found = null;
+      int foundCount = 0;
+      int reused = -1;
+      int res = keep > 0 ? offsets[keep - 1] : 0;
+      int prev = keep > 0 ? offsets[keep - 1] : -1;
+      while (true) {
+        res = SearchHelper.findNextWordOne(chars, res, newSize, 1, bigWord, false);
+        if (res == 0 || res > newSize || res == prev) {
+          break;
+        }
+        if (canReuse && res >= changeEnd) {
+          final int index = Arrays.binarySearch(offsets, keep, count, res - delta);
+          if (index >= 0) {
+            reused = index;
+            break;
+          }
+        }
+
+        if (found == null) {
+          found = new int[16];
+        }
+        else if (foundCount == found.length) {
+          found = Arrays.copyOf(found, foundCount * 2);
+        }
+        found[foundCount++] = res;
+        prev = res;
+      }
+
+      final int tail = reused >= 0 ? count - reused : 0;
+      final int newCount = keep + foundCount + tail;
+      int[] target = offsets;
+      if (newCount > offsets.length) {
+        target = Arrays.copyOf(offsets, Math.max(newCount, offsets.length * 2));
+      }
+      if (tail > 0) {
+        System.arraycopy(offsets, reused, target, keep + foundCount, tail);
+        for (int i = keep + foundCount; i < newCount; i++) {
+          target[i] += delta;
+        }
+      }
+      if (foundCount > 0) {
+        System.arraycopy(found, 0, target, keep, foundCount);
+      }
+
+      offsets = target;
+      count = newCount;
+      last = reused >= 0 ? last + delta : res;
+      size = newSize;
+      stamp = document.getModificationStamp();
+      return true;
+    }
+
+    private void add(int offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      offsets[count++] = offset;
+    }
+
+    /**
+     * @return The index of the first word start at or after the offset, or the number of word starts if there is none
+     */
+    private int firstAtOrAfter(int offset) {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (offsets[mid] < offset) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Keeps the word index of a document up to date, if the document has one
+   */
+  public static class Updater implements DocumentListener {
+    public static final Updater INSTANCE = new Updater();
+
+    private Updater() {
+    }
+
+    @Override
+    public void documentChanged(@NotNull DocumentEvent event) {
+      final WordIndex index = event.getDocument().getUserData(WORD_INDEX);
+      if (index != null) {
+        index.update(event);
+      }
+    }
+  }
+}
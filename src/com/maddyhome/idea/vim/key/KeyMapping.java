@@ -18,8 +18,6 @@
 
 package com.maddyhome.idea.vim.key;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
 import com.maddyhome.idea.vim.extension.VimExtensionHandler;
 import kotlin.Pair;
 import org.jetbrains.annotations.NotNull;
@@ -41,11 +39,16 @@ public class KeyMapping implements Iterable<List<KeyStroke>> {
    */
   private final @NotNull Map<List<KeyStroke>, MappingInfo> myKeys = new HashMap<>();
   /**
-   * Set the contains all possible prefixes for mappings.
-   * E.g. if there is mapping for "hello", this set will contain "h", "he", "hel", etc.
-   * Multiset is used to correctly remove the mappings.
+   * Contains the "from" keys of the mappings of each owner, so the mappings of an owner are found without looking at
+   * all the mappings.
    */
-  private final @NotNull Multiset<List<KeyStroke>> myPrefixes = HashMultiset.create();
+  private final @NotNull Map<MappingOwner, Set<List<KeyStroke>>> myKeysByOwner = new HashMap<>();
+  /**
+   * Trie of the "from" keys of all the mappings.
+   * E.g. if there is mapping for "hello", there are nodes for "h", "he", "hel", etc., and a key sequence that is typed
+   * is followed one key at a time, see {@link #getNode(List, Node)}. A node that isn't a prefix or a mapping is removed.
+   */
+  private final @NotNull Node myRoot = new Node(this, null, null);
 
   @Override
   public @NotNull Iterator<List<KeyStroke>> iterator() {
@@ -53,61 +56,160 @@ public class KeyMapping implements Iterable<List<KeyStroke>> {
   }
 
   public @Nullable MappingInfo get(@NotNull Iterable<KeyStroke> keys) {
-    // Having a parameter of Iterable allows for a nicer API, because we know when a given list is immutable.
-    // TODO: Should we change this to be a trie?
-    assert (keys instanceof List) : "keys must be of type List<KeyStroke>";
-    return myKeys.get(keys);
+    final Node node = getNode(keys);
+    return node != null ? node.getMappingInfo() : null;
   }
 
   public void put(@NotNull List<KeyStroke> fromKeys,
                   @NotNull MappingOwner owner,
                   @NotNull VimExtensionHandler extensionHandler,
                   boolean recursive) {
-    myKeys.put(new ArrayList<>(fromKeys), new ToHandlerMappingInfo(extensionHandler, fromKeys, recursive, owner));
-    fillPrefixes(fromKeys);
+    put(fromKeys, new ToHandlerMappingInfo(extensionHandler, fromKeys, recursive, owner));
   }
 
   public void put(@NotNull List<KeyStroke> fromKeys,
                   @NotNull List<KeyStroke> toKeys,
                   @NotNull MappingOwner owner,
                   boolean recursive) {
-    myKeys.put(new ArrayList<>(fromKeys), new ToKeysMappingInfo(toKeys, fromKeys, recursive, owner));
-    fillPrefixes(fromKeys);
+    put(fromKeys, new ToKeysMappingInfo(toKeys, fromKeys, recursive, owner));
   }
 
-  private void fillPrefixes(@NotNull List<KeyStroke> fromKeys) {
-    List<KeyStroke> prefix = new ArrayList<>();
-    final int prefixLength = fromKeys.size() - 1;
-    for (int i = 0; i < prefixLength; i++) {
-      prefix.add(fromKeys.get(i));
-      myPrefixes.add(new ArrayList<>(prefix));
+  private void put(@NotNull List<KeyStroke> fromKeys, @NotNull MappingInfo mappingInfo) {
+    final List<KeyStroke> keys = new ArrayList<>(fromKeys);
+    final MappingInfo previous = myKeys.put(keys, mappingInfo);
+    if (previous != null) {
+      removeOwnerKeys(previous.getOwner(), keys);
     }
+    myKeysByOwner.computeIfAbsent(mappingInfo.getOwner(), owner -> new HashSet<>()).add(keys);
+
+    Node node = myRoot;
+    for (KeyStroke key : keys) {
+      node = node.getOrAddChild(key);
+    }
+    node.myMappingInfo = mappingInfo;
   }
 
   public void delete(@NotNull MappingOwner owner) {
-    List<Map.Entry<List<KeyStroke>, MappingInfo>> toRemove =
-      myKeys.entrySet().stream().filter(o -> o.getValue().getOwner().equals(owner)).collect(Collectors.toList());
-
-    toRemove.forEach(o -> myKeys.remove(o.getKey(), o.getValue()));
-    toRemove.stream().map(Map.Entry::getKey).forEach(keys -> {
-      List<KeyStroke> prefix = new ArrayList<>();
-      final int prefixLength = keys.size() - 1;
-      for (int i = 0; i < prefixLength; i++) {
-        prefix.add(keys.get(i));
-        myPrefixes.remove(prefix);
+    final Set<List<KeyStroke>> toRemove = myKeysByOwner.remove(owner);
+    if (toRemove == null) return;
+
+    for (List<KeyStroke> keys : toRemove) {
+      myKeys.remove(keys);
+      final Node node = getNode(keys);
+      if (node != null) {
+        node.myMappingInfo = null;
+        node.removeIfUnused();
       }
-    });
+    }
   }
 
   public List<Pair<List<KeyStroke>, MappingInfo>> getByOwner(@NotNull MappingOwner owner) {
-    return myKeys.entrySet().stream().filter(o -> o.getValue().getOwner().equals(owner))
-      .map(o -> new Pair<>(o.getKey(), o.getValue())).collect(Collectors.toList());
+    final Set<List<KeyStroke>> keys = myKeysByOwner.getOrDefault(owner, Collections.emptySet());
+    return keys.stream().map(o -> new Pair<>(o, myKeys.get(o))).collect(Collectors.toList());
   }
 
   public boolean isPrefix(@NotNull Iterable<KeyStroke> keys) {
-    // Having a parameter of Iterable allows for a nicer API, because we know when a given list is immutable.
-    // Perhaps we should look at changing this to a trie or something?
-    assert (keys instanceof List) : "keys must be of type List<KeyStroke>";
-    return myPrefixes.contains(keys);
+    final Node node = getNode(keys);
+    return node != null && node.isPrefix();
+  }
+
+  /**
+   * Returns the node of the keys, or null if no mapping starts with them.
+   * The keys are usually typed one at a time, so the node of all the keys but the last one can be given. If it is still
+   * in the trie and ends with the same key, only the last key is looked up. The caller has to make sure that the rest
+   * of the keys is the same too, e.g. by forgetting the node whenever the typed keys are reset.
+   */
+  public @Nullable Node getNode(@NotNull List<KeyStroke> keys, @Nullable Node previous) {
+    if (previous != null && previous.myMapping == this && !previous.myRemoved &&
+        previous.myDepth == keys.size() - 1 &&
+        (previous.myDepth == 0 || keys.get(previous.myDepth - 1).equals(previous.myKey))) {
+      assert previous.isNodeOf(keys.subList(0, previous.myDepth)) : "The previous node isn't the node of the keys";
+      return previous.getChild(keys.get(keys.size() - 1));
+    }
+    return getNode(keys);
+  }
+
+  private @Nullable Node getNode(@NotNull Iterable<KeyStroke> keys) {
+    Node node = myRoot;
+    for (KeyStroke key : keys) {
+      node = node.getChild(key);
+      if (node == null) return null;
+    }
+    return node;
+  }
+
+  private void removeOwnerKeys(@NotNull MappingOwner owner, @NotNull List<KeyStroke> keys) {
+    final Set<List<KeyStroke>> ownerKeys = myKeysByOwner.get(owner);
+    if (ownerKeys != null) {
+      ownerKeys.remove(keys);
+      if (ownerKeys.isEmpty()) {
+        myKeysByOwner.remove(owner);
+      }
+    }
+  }
+
+  /**
+   * A sequence of keys in the trie of the "from" keys. It can be a complete mapping, a prefix of longer mappings, or
+   * both.
+   */
+  public static final class Node {
+    private final @NotNull KeyMapping myMapping;
+    private final @Nullable Node myParent;
+    private final @Nullable KeyStroke myKey;
+    private final int myDepth;
+    private @Nullable Map<KeyStroke, Node> myChildren = null;
+    private @Nullable MappingInfo myMappingInfo = null;
+    private boolean myRemoved = false;
+
+    private Node(@NotNull KeyMapping mapping, @Nullable Node parent, @Nullable KeyStroke key) {
+      myMapping = mapping;
+      myParent = parent;
+      myKey = key;
+      myDepth = parent != null ? parent.myDepth + 1 : 0;
+    }
+
+    /**
+     * The mapping of this key sequence, if it's a complete mapping
+     */
+    public @Nullable MappingInfo getMappingInfo() {
+      return myMappingInfo;
+    }
+
+    /**
+     * True if there is a longer mapping that starts with this key sequence
+     */
+    public boolean isPrefix() {
+      return myChildren != null && !myChildren.isEmpty();
+    }
+
+    private boolean isNodeOf(@NotNull List<KeyStroke> keys) {
+      Node node = this;
+      for (int i = keys.size() - 1; i >= 0; i--) {
+        if (node.myParent == null || !keys.get(i).equals(node.myKey)) return false;
+        node = node.myParent;
+      }
+      return node.myParent == null;
+    }
+
+    private @Nullable Node getChild(@NotNull KeyStroke key) {
+      return myChildren != null ? myChildren.get(key) : null;
+    }
+
+    private @NotNull Node getOrAddChild(@NotNull KeyStroke key) {
+      if (myChildren == null) {
+        myChildren = new HashMap<>();
+      }
+      return myChildren.computeIfAbsent(key, k -> new Node(myMapping, this, k));
+    }
+
+    private void removeIfUnused() {
+      Node node = this;
+      while (node.myParent != null && node.myMappingInfo == null && !node.isPrefix()) {
+        //noinspection ConstantConditions
+        node.myParent.myChildren.remove(node.myKey);
+        node.myRemoved = true;
+        node = node.myParent;
+      }
+    }
   }
 }
@@ -64,6 +64,8 @@ object OptionsManager {
   val more = addOption(ToggleOption("more", "more", true))
   val nrformats = addOption(BoundListOption("nrformats", "nf", arrayOf("octal", "hex"), arrayOf("octal", "hex", "alpha")))
   val number = addOption(ToggleOption("number", "nu", false))
+  val redrawtime = addOption(NumberOption("redrawtime", "rdt", 2000))
+  val regexpengine = addOption(NumberOption("regexpengine", "re", 0, 0, 2))
   val relativenumber = addOption(ToggleOption("relativenumber", "rnu", false))
   val scroll = addOption(NumberOption("scroll", "scr", 0))
   val scrolljump = addOption(NumberOption("scrolljump", "sj", 1))
@@ -28,29 +28,39 @@ import java.util.Objects;
 public class CharPointer {
   private @NotNull CharSequence seq;
   private int pointer;
-  private boolean readonly;
+  /* End of the text in seq, or -1 if the text runs to the end of seq. A StringBuffer can grow, so it has no limit. */
+  private int limit = -1;
 
   public CharPointer(@NotNull String text) {
     seq = text;
-    readonly = true;
   }
 
   public CharPointer(@NotNull CharBuffer text) {
     seq = text;
-    readonly = true;
   }
 
   public CharPointer(@NotNull StringBuffer text) {
     seq = text;
-    readonly = false;
   }
 
   private CharPointer(@NotNull CharPointer ptr, int offset) {
     seq = ptr.seq;
-    readonly = ptr.readonly;
+    limit = ptr.limit;
     pointer = ptr.pointer + offset;
   }
 
+  /**
+   * Makes this pointer point to the start of seq[start, end), e.g. to a line of a document, without copying the text.
+   * The same instance can be reused for every line.
+   */
+  @NotNull CharPointer reset(@NotNull CharSequence seq, int start, int end) {
+    this.seq = seq;
+    pointer = start;
+    limit = end;
+
+    return this;
+  }
+
   public int pointer() {
     return pointer;
   }
@@ -60,7 +70,8 @@ public class CharPointer {
   }
 
   public @NotNull CharPointer set(char ch, int offset) {
-    if (readonly) {
+    // Only the program being compiled is a StringBuffer, the text being matched is never modified
+    if (!(seq instanceof StringBuffer)) {
       throw new IllegalStateException("readonly string");
     }
 
@@ -115,7 +126,7 @@ public class CharPointer {
   public @NotNull CharPointer assign(@NotNull CharPointer ptr) {
     seq = ptr.seq;
     pointer = ptr.pointer;
-    readonly = ptr.readonly;
+    limit = ptr.limit;
 
     return this;
   }
@@ -129,25 +140,26 @@ public class CharPointer {
 
     int start = pointer;
     int end = normalize(pointer + len);
-    return CharBuffer.wrap(seq, start, end).toString();
+    return seq.subSequence(start, end).toString();
   }
 
   public int strlen() {
     if (end()) return 0;
 
-    for (int i = pointer; i < seq.length(); i++) {
+    final int len = length();
+    for (int i = pointer; i < len; i++) {
       if (seq.charAt(i) == '\u0000') {
         return i - pointer;
       }
     }
 
-    return seq.length() - pointer;
+    return len - pointer;
   }
 
   public int strncmp(@NotNull String str, int len) {
     if (end()) return -1;
 
-    String s = CharBuffer.wrap(seq, pointer, normalize(pointer + len)).toString();
+    String s = seq.subSequence(pointer, normalize(pointer + len)).toString();
 
     if (len > str.length()) {
       len = str.length();
@@ -159,17 +171,14 @@ public class CharPointer {
   public int strncmp(@NotNull CharPointer str, int len, boolean ignoreCase) {
     if (end()) return -1;
 
-    CharSequence cs1 = CharBuffer.wrap(seq, pointer, normalize(pointer + len));
-    CharSequence cs2 = CharBuffer.wrap(str.seq, str.pointer, str.normalize(str.pointer + len));
-
-    int l = cs1.length();
-    if (l != cs2.length()) {
+    int l = normalize(pointer + len) - pointer;
+    if (l != str.normalize(str.pointer + len) - str.pointer) {
       return 1;
     }
 
     for (int i = 0; i < l; i++) {
-      char c1 = cs1.charAt(i);
-      char c2 = cs2.charAt(i);
+      char c1 = seq.charAt(pointer + i);
+      char c2 = str.seq.charAt(str.pointer + i);
 
       final boolean notEqual = ignoreCase ? Character.toLowerCase(c1) != Character.toLowerCase(c2) &&
                                             Character.toUpperCase(c1) != Character.toUpperCase(c2) : c1 != c2;
@@ -180,44 +189,54 @@ public class CharPointer {
   }
 
   public @Nullable CharPointer strchr(char c) {
-    if (end()) {
-      return null;
-    }
-
-    final int len = seq.length();
-    for (int i = pointer; i < len; i++) {
-      final char ch = seq.charAt(i);
-      if (ch == '\u0000') {
-        return null;
-      }
-      if (ch == c) {
-        return ref(i - pointer);
-      }
-    }
-
-    return null;
+    final int index = indexOf(c, 0, false);
+    return index == -1 ? null : ref(index);
   }
 
   public @Nullable CharPointer istrchr(char c) {
-    if (end()) {
-      return null;
+    final int index = indexOf(c, 0, true);
+    return index == -1 ? null : ref(index);
+  }
+
+  /**
+   * Like {@link #strchr(char)} starting at the given offset, but returns the offset of the character instead of a new
+   * pointer, or -1 if it isn't found
+   */
+  int indexOf(char c, int offset, boolean ignoreCase) {
+    if (end(offset)) {
+      return -1;
     }
 
-    final int len = seq.length();
-    final char cc = Character.toUpperCase(c);
-    c = Character.toLowerCase(c);
+    final int len = length();
+    final char cc = ignoreCase ? Character.toUpperCase(c) : c;
+    if (ignoreCase) {
+      c = Character.toLowerCase(c);
+    }
 
-    for (int i = pointer; i < len; i++) {
+    for (int i = pointer + offset; i < len; i++) {
       final char ch = seq.charAt(i);
       if (ch == '\u0000') {
-        return null;
+        return -1;
       }
       if (ch == c || ch == cc) {
-        return ref(i - pointer);
+        return i - pointer;
       }
     }
 
-    return null;
+    return -1;
+  }
+
+  /**
+   * Returns the offset of the first occurrence of the finder's literal at or after the given offset, or -1 if there is
+   * none
+   */
+  int find(@NotNull LiteralFinder finder, int offset, boolean ignoreCase) {
+    if (end(offset)) {
+      return -1;
+    }
+
+    final int index = finder.indexIn(seq, pointer + offset, length(), ignoreCase);
+    return index == -1 ? -1 : index - pointer;
   }
 
   public boolean isNul() {
@@ -229,7 +248,7 @@ public class CharPointer {
   }
 
   public boolean end(int offset) {
-    return pointer + offset >= seq.length();
+    return pointer + offset >= length();
   }
 
   public int OP() {
@@ -291,7 +310,11 @@ public class CharPointer {
   }
 
   private int normalize(int pos) {
-    return Math.min(seq.length(), pos);
+    return Math.min(length(), pos);
+  }
+
+  private int length() {
+    return limit == -1 ? seq.length() : limit;
   }
 
   public @NotNull String toString() {
@@ -0,0 +1,99 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.regexp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool search for the literal text that must appear in every match of a regexp (the "regmust").
+ *
+ * The shift tables are indexed by the low byte of a character. Characters that share a low byte share a slot, and the
+ * slot keeps the smallest shift, so a collision can only make the search slower, never skip a match. Ignoring case
+ * uses a separate table that has the shifts of both the lower and the upper case forms of the literal.
+ */
+final class LiteralFinder {
+  private static final int TABLE_SIZE = 256;
+
+  private final @NotNull String literal;
+  private final @NotNull int[] shift = new int[TABLE_SIZE];
+  private final @NotNull int[] ishift = new int[TABLE_SIZE];
+
+  LiteralFinder(@NotNull String literal) {
+    this.literal = literal;
+
+    final int last = literal.length() - 1;
+    Arrays.fill(shift, literal.length());
+    Arrays.fill(ishift, literal.length());
+    for (int i = 0; i < last; i++) {
+      final char c = literal.charAt(i);
+      // The distance to the end decreases, so a later assignment is always the smaller shift
+      shift[c & 0xff] = last - i;
+      ishift[c & 0xff] = last - i;
+      ishift[Character.toLowerCase(c) & 0xff] = last - i;
+      ishift[Character.toUpperCase(c) & 0xff] = last - i;
+    }
+  }
+
+  /**
+   * Returns the index of the first occurrence of the literal in seq[from, to), or -1 if there is none
+   */
+  int indexIn(@NotNull CharSequence seq, int from, int to, boolean ignoreCase) {
+    final int length = literal.length();
+    if (length == 0) {
+      return from <= to ? from : -1;
+    }
+
+    final int last = length - 1;
+    int pos = from;
+    while (pos + last < to) {
+      final char c = seq.charAt(pos + last);
+      if (matchesAt(seq, pos, ignoreCase)) {
+        return pos;
+      }
+      pos += ignoreCase ? ishift(c) : shift[c & 0xff];
+    }
+
+    return -1;
+  }
+
+  private int ishift(char c) {
+    // A character is equal to a literal character ignoring case if their lower or their upper case forms are equal,
+    // and both forms of every literal character are in the table
+    return Math.min(ishift[c & 0xff], Math.min(ishift[Character.toLowerCase(c) & 0xff],
+                                               ishift[Character.toUpperCase(c) & 0xff]));
+  }
+
+  private boolean matchesAt(@NotNull CharSequence seq, int pos, boolean ignoreCase) {
+    for (int i = literal.length() - 1; i >= 0; i--) {
+      final char c1 = seq.charAt(pos + i);
+      final char c2 = literal.charAt(i);
+      if (c1 == c2) {
+        continue;
+      }
+      if (!ignoreCase ||
+          (Character.toLowerCase(c1) != Character.toLowerCase(c2) &&
+           Character.toUpperCase(c1) != Character.toUpperCase(c2))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.regexp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.maddyhome.idea.vim.regexp.RegExp.*;
+
+/**
+ * A compiled regexp program translated to the instructions of a Thompson NFA.
+ *
+ * The NFA is simulated by {@link RegExp} one character at a time for all alternatives at once (a "Pike VM"), so the
+ * time to match is linear in the length of the text, while the backtracking engine can take exponential time for
+ * nested multis. Threads are kept in the order the backtracking engine would try them, which gives the same match
+ * and the same submatches.
+ *
+ * Back references, look-around, "\&" and "\z(" can't be expressed this way, {@link #compile(String)} returns null for
+ * them and the backtracking engine is used instead. The same happens when "\{n,m}" would unroll to too many
+ * instructions.
+ */
+final class NfaProgram {
+  /* Instructions. The character instructions stop the thread until the next character is read, the others are
+   * followed immediately. */
+  static final int CHAR = 0;       /* match a character with the character class, ANYOF, ANYBUT or EXACTLY node "node" */
+  static final int EXACT = 1;      /* match the character "op" of an EXACTLY node, "arg" is its index */
+  static final int LINEBREAK = 2;  /* match a line break */
+  static final int ASSERT = 3;     /* check the zero-width node "node", e.g. BOL or BOW */
+  static final int SAVE = 4;       /* remember the position in submatch slot "arg", 0-9 are starts, 10-19 are ends */
+  static final int SPLIT = 5;      /* continue at "next", and at "alt" with a lower priority */
+  static final int JUMP = 6;       /* continue at "next" */
+  static final int MATCH = 7;      /* the pattern matched */
+
+  private static final int MAX_SIZE = 5000;
+
+  /**
+   * The compiled program as a String, so reading it doesn't need to synchronize. Node positions are offsets in it.
+   */
+  final @NotNull CharPointer program;
+
+  int size = 0;
+  int[] kind = new int[32];
+  int[] op = new int[32];
+  int[] node = new int[32];
+  int[] arg = new int[32];
+  int[] next = new int[32];
+  int[] alt = new int[32];
+
+  /**
+   * The program has a multi inside a loop, e.g. "\(a*\)*". These are the patterns that can take exponential time
+   * with the backtracking engine.
+   */
+  boolean nested = false;
+
+  private final @NotNull Deque<Link> links = new ArrayDeque<>();
+  private final @NotNull Set<Integer> multis = new HashSet<>();
+  private boolean loop = false;
+
+  private NfaProgram(@NotNull String program) {
+    this.program = new CharPointer(program);
+  }
+
+  /**
+   * Translates a compiled regexp program, or returns null if it uses something the NFA can't do
+   */
+  static @Nullable NfaProgram compile(@NotNull String program) {
+    final NfaProgram nfa = new NfaProgram(program);
+    try {
+      nfa.link(-1, false, 1, new Copy(-1, -1));
+      while (!nfa.links.isEmpty()) {
+        final Link link = nfa.links.removeFirst();
+        nfa.set(link.instr, link.alt, nfa.emit(link.node, link.copy));
+      }
+    }
+    catch (UnsupportedOperationException e) {
+      return null;
+    }
+    nfa.nested = nfa.loop && nfa.multis.size() > 1;
+    return nfa;
+  }
+
+  /**
+   * Instructions for the nodes inside one repetition of a "\{n,m}". The repeated nodes end with a BACK to the brace
+   * node, each repetition continues with its own instruction when it gets there.
+   */
+  private static final class Copy {
+    final int stop;
+    final int exit;
+    final @NotNull Map<Integer, Integer> entries = new HashMap<>();
+
+    Copy(int stop, int exit) {
+      this.stop = stop;
+      this.exit = exit;
+    }
+  }
+
+  private static final class Link {
+    final int instr;
+    final boolean alt;
+    final int node;
+    final @NotNull Copy copy;
+
+    Link(int instr, boolean alt, int node, @NotNull Copy copy) {
+      this.instr = instr;
+      this.alt = alt;
+      this.node = node;
+      this.copy = copy;
+    }
+  }
+
+  /**
+   * Sets "next" (or "alt") of the instruction to the instructions of the node, once they are created
+   */
+  private void link(int instr, boolean alt, int node, @NotNull Copy copy) {
+    if (node == -1) {
+      throw new UnsupportedOperationException();
+    }
+    final Integer entry = node == copy.stop ? Integer.valueOf(copy.exit) : copy.entries.get(node);
+    if (entry != null) {
+      set(instr, alt, entry);
+    }
+    else {
+      links.addLast(new Link(instr, alt, node, copy));
+    }
+  }
+
+  private void set(int instr, boolean alt, int target) {
+    if (instr == -1) {
+      // The start of the program is always instruction 0
+      return;
+    }
+    if (alt) {
+      this.alt[instr] = target;
+    }
+    else {
+      this.next[instr] = target;
+    }
+  }
+
+  private int add(int kind, int op, int node, int arg) {
+    if (size == MAX_SIZE) {
+      throw new UnsupportedOperationException();
+    }
+    if (size == this.kind.length) {
+      final int length = size * 2;
+      this.kind = Arrays.copyOf(this.kind, length);
+      this.op = Arrays.copyOf(this.op, length);
+      this.node = Arrays.copyOf(this.node, length);
+      this.arg = Arrays.copyOf(this.arg, length);
+      this.next = Arrays.copyOf(this.next, length);
+      this.alt = Arrays.copyOf(this.alt, length);
+    }
+    this.kind[size] = kind;
+    this.op[size] = op;
+    this.node[size] = node;
+    this.arg[size] = arg;
+    this.next[size] = -1;
+    this.alt[size] = -1;
+    return size++;
+  }
+
+  /**
+   * Creates the instructions of a node, returns the first one
+   */
+  private int emit(int pos, @NotNull Copy copy) {
+    final Integer existing = pos == copy.stop ? Integer.valueOf(copy.exit) : copy.entries.get(pos);
+    if (existing != null) {
+      return existing;
+    }
+
+    final CharPointer scan = program.ref(pos);
+    final int op = scan.OP();
+    final int nextPos = regnext(pos);
+    final int entry;
+
+    if ((op >= ANY && op <= NUPPER) || (op >= ANY + ADD_NL && op <= NUPPER + ADD_NL)) {
+      entry = add(CHAR, op, pos, 0);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op == EXACTLY) {
+      final CharPointer opnd = scan.OPERAND();
+      final int len = opnd.strlen();
+      int last = -1;
+      int first = -1;
+      for (int i = 0; i < len; i++) {
+        final int instr = add(EXACT, opnd.charAt(i), pos, i);
+        if (last == -1) {
+          first = instr;
+          copy.entries.put(pos, first);
+        }
+        else {
+          next[last] = instr;
+        }
+        last = instr;
+      }
+      if (first == -1) {
+        throw new UnsupportedOperationException();
+      }
+      entry = first;
+      link(last, false, nextPos, copy);
+    }
+    else if (op == NEWL) {
+      entry = add(LINEBREAK, op, pos, 0);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op == BOL || op == EOL || op == RE_BOF || op == RE_EOF || op == CURSOR || op == RE_LNUM ||
+             op == RE_COL || op == BOW || op == EOW) {
+      entry = add(ASSERT, op, pos, 0);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op == NOTHING || op == BACK || op == NOPEN || op == NCLOSE || op == RE_VCOL) {
+      if (op == BACK) {
+        loop = true;
+        multis.add(pos);
+      }
+      entry = add(JUMP, op, pos, 0);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op >= MOPEN && op < MOPEN + NSUBEXP) {
+      entry = add(SAVE, op, pos, op - MOPEN);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op >= MCLOSE && op < MCLOSE + NSUBEXP) {
+      entry = add(SAVE, op, pos, NSUBEXP + op - MCLOSE);
+      copy.entries.put(pos, entry);
+      link(entry, false, nextPos, copy);
+    }
+    else if (op == BRANCH) {
+      if (nextPos == -1 || program.charAt(nextPos) != BRANCH) {
+        /* No choice. */
+        entry = add(JUMP, op, pos, 0);
+        copy.entries.put(pos, entry);
+        link(entry, false, pos + 3, copy);
+      }
+      else {
+        /* Try the alternatives in the order of the chain, like regmatch() does. */
+        int split = add(SPLIT, op, pos, 0);
+        entry = split;
+        copy.entries.put(pos, entry);
+        int branch = pos;
+        while (true) {
+          link(split, false, branch + 3, copy);
+          branch = regnext(branch);
+          final int after = branch == -1 ? -1 : regnext(branch);
+          if (after == -1 || program.charAt(after) != BRANCH) {
+            link(split, true, branch + 3, copy);
+            break;
+          }
+          final int nextSplit = add(SPLIT, BRANCH, branch, 0);
+          alt[split] = nextSplit;
+          split = nextSplit;
+        }
+      }
+    }
+    else if (op == STAR || op == PLUS) {
+      multis.add(pos);
+      final int after = add(JUMP, op, pos, 0);
+      link(after, false, nextPos, copy);
+      entry = repeat(pos + 3, null, op == STAR ? 0 : 1, MAX_LIMIT, true, after);
+      copy.entries.put(pos, entry);
+    }
+    else if (op == BRACE_LIMITS) {
+      multis.add(pos);
+      final int minval = scan.OPERAND_MIN();
+      final int maxval = scan.OPERAND_MAX();
+      final int brace = nextPos;
+      if (brace != -1 && program.charAt(brace) != BRACE_SIMPLE) {
+        loop = true;
+      }
+      final int braceOp = brace == -1 ? -1 : program.charAt(brace);
+      if (braceOp != BRACE_SIMPLE && (braceOp < BRACE_COMPLEX || braceOp >= BRACE_COMPLEX + 10)) {
+        throw new UnsupportedOperationException();
+      }
+      final int after = add(JUMP, op, pos, 0);
+      link(after, false, regnext(brace), copy);
+      /* When the limits are the wrong way around the shortest match is used. */
+      final boolean greedy = minval <= maxval;
+      entry = repeat(brace + 3, braceOp == BRACE_SIMPLE ? null : brace, Math.min(minval, maxval),
+                     Math.max(minval, maxval), greedy, after);
+      copy.entries.put(pos, entry);
+    }
+    else if (op == END) {
+      entry = add(MATCH, op, pos, 0);
+      copy.entries.put(pos, entry);
+    }
+    else {
+      /* Back references, look-around, "\&", "\z(", etc. */
+      throw new UnsupportedOperationException();
+    }
+
+    return entry;
+  }
+
+  /**
+   * Creates the instructions for "min" to "max" repetitions of the operand, followed by "after".
+   *
+   * @param operand The simple node of STAR, PLUS and BRACE_SIMPLE, or the first node of BRACE_COMPLEX
+   * @param brace   The BRACE_COMPLEX node, the operand nodes end with a BACK to it. Null for a simple node
+   */
+  private int repeat(int operand, @Nullable Integer brace, int min, int max, boolean greedy, int after) {
+    int current = after;
+    if (max == MAX_LIMIT) {
+      final int loop = add(SPLIT, 0, operand, 0);
+      final int body = repeatedOperand(operand, brace, loop);
+      next[loop] = greedy ? body : after;
+      alt[loop] = greedy ? after : body;
+      current = loop;
+    }
+    else {
+      for (int i = min; i < max; i++) {
+        final int split = add(SPLIT, 0, operand, 0);
+        final int body = repeatedOperand(operand, brace, current);
+        next[split] = greedy ? body : after;
+        alt[split] = greedy ? after : body;
+        current = split;
+      }
+    }
+    for (int i = 0; i < min; i++) {
+      current = repeatedOperand(operand, brace, current);
+    }
+    return current;
+  }
+
+  /**
+   * Creates a new set of instructions for the operand of a multi that continues with "exit"
+   */
+  private int repeatedOperand(int operand, @Nullable Integer brace, int exit) {
+    if (brace == null) {
+      final int op = program.charAt(operand);
+      final int instr = add(op == NEWL ? LINEBREAK : CHAR, op, operand, 0);
+      next[instr] = exit;
+      return instr;
+    }
+
+    return emit(operand, new Copy(brace, exit));
+  }
+
+  /**
+   * Position of the next node, or -1 at the end of the program. Same as RegExp.regnext().
+   */
+  private int regnext(int pos) {
+    final CharPointer p = program.ref(pos);
+    final int offset = p.NEXT();
+    if (offset == 0) {
+      return -1;
+    }
+    return p.OP() == BACK ? pos - offset : pos + offset;
+  }
+}
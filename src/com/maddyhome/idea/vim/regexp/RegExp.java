@@ -21,112 +21,118 @@ package com.maddyhome.idea.vim.regexp;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.helper.EditorHelper;
 import com.maddyhome.idea.vim.helper.MessageHelper;
 import com.maddyhome.idea.vim.helper.Msg;
+import com.maddyhome.idea.vim.option.OptionsManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+
 public class RegExp {
-  public static @Nullable reg_extmatch_T re_extmatch_out = null;
-  public static @Nullable reg_extmatch_T re_extmatch_in = null;
+  /* The state of a match is kept in the instance, so separate instances can be used on separate threads */
+  private @Nullable reg_extmatch_T re_extmatch_out = null;
+  private @Nullable reg_extmatch_T re_extmatch_in = null;
 
   /*
      * The opcodes are:
      */
 
   /* definition                   number             opnd?    meaning */
-  private static final int END = 0;       /*      End of program or NOMATCH operand. */
-  private static final int BOL = 1;       /*      Match "" at beginning of line. */
-  private static final int EOL = 2;       /*      Match "" at end of line. */
-  private static final int BRANCH = 3;       /* node Match this alternative, or the next... */
-  private static final int BACK = 4;       /*      Match "", "next" ptr points backward. */
-  private static final int EXACTLY = 5;       /* str  Match this string. */
-  private static final int NOTHING = 6;       /*      Match empty string. */
-  private static final int STAR = 7;       /* node Match this (simple) thing 0 or more times. */
-  private static final int PLUS = 8;       /* node Match this (simple) thing 1 or more times. */
-  private static final int MATCH = 9;       /* node match the operand zero-width */
-  private static final int NOMATCH = 10;      /* node check for no match with operand */
-  private static final int BEHIND = 11;      /* node look behind for a match with operand */
-  private static final int NOBEHIND = 12;      /* node look behind for no match with operand */
-  private static final int SUBPAT = 13;      /* node match the operand here */
-  private static final int BRACE_SIMPLE = 14;  /* node Match this (simple) thing between m and
+  static final int END = 0;       /*      End of program or NOMATCH operand. */
+  static final int BOL = 1;       /*      Match "" at beginning of line. */
+  static final int EOL = 2;       /*      Match "" at end of line. */
+  static final int BRANCH = 3;       /* node Match this alternative, or the next... */
+  static final int BACK = 4;       /*      Match "", "next" ptr points backward. */
+  static final int EXACTLY = 5;       /* str  Match this string. */
+  static final int NOTHING = 6;       /*      Match empty string. */
+  static final int STAR = 7;       /* node Match this (simple) thing 0 or more times. */
+  static final int PLUS = 8;       /* node Match this (simple) thing 1 or more times. */
+  static final int MATCH = 9;       /* node match the operand zero-width */
+  static final int NOMATCH = 10;      /* node check for no match with operand */
+  static final int BEHIND = 11;      /* node look behind for a match with operand */
+  static final int NOBEHIND = 12;      /* node look behind for no match with operand */
+  static final int SUBPAT = 13;      /* node match the operand here */
+  static final int BRACE_SIMPLE = 14;  /* node Match this (simple) thing between m and
                                                   *      n times (\{m,n\}). */
-  private static final int BOW = 15;      /*      Match "" after [^a-zA-Z0-9_] */
-  private static final int EOW = 16;      /*      Match "" at    [^a-zA-Z0-9_] */
-  private static final int BRACE_LIMITS = 17;  /* nr nr  define the min & max for BRACE_SIMPLE
+  static final int BOW = 15;      /*      Match "" after [^a-zA-Z0-9_] */
+  static final int EOW = 16;      /*      Match "" at    [^a-zA-Z0-9_] */
+  static final int BRACE_LIMITS = 17;  /* nr nr  define the min & max for BRACE_SIMPLE
                                                   *      and BRACE_COMPLEX. */
-  private static final int NEWL = 18;      /*      Match line-break */
-  private static final int BHPOS = 19;      /*      End position for BEHIND or NOBEHIND */
+  static final int NEWL = 18;      /*      Match line-break */
+  static final int BHPOS = 19;      /*      End position for BEHIND or NOBEHIND */
 
 
   /* character classes: 20-48 normal, 50-78 include a line-break */
-  private static final int ADD_NL = 30;
-  private static final int ANY = 20;      /*      Match any one character. */
-  private static final int FIRST_NL = ANY + ADD_NL;
-  private static final int ANYOF = 21;      /* str  Match any character in this string. */
-  private static final int ANYBUT = 22;      /* str  Match any character not in this
+  static final int ADD_NL = 30;
+  static final int ANY = 20;      /*      Match any one character. */
+  static final int FIRST_NL = ANY + ADD_NL;
+  static final int ANYOF = 21;      /* str  Match any character in this string. */
+  static final int ANYBUT = 22;      /* str  Match any character not in this
                                                   *      string. */
-  private static final int IDENT = 23;      /*      Match identifier char */
-  private static final int SIDENT = 24;      /*      Match identifier char but no digit */
-  private static final int KWORD = 25;      /*      Match keyword char */
-  private static final int SKWORD = 26;      /*      Match word char but no digit */
-  private static final int FNAME = 27;      /*      Match file name char */
-  private static final int SFNAME = 28;      /*      Match file name char but no digit */
-  private static final int PRINT = 29;      /*      Match printable char */
-  private static final int SPRINT = 30;      /*      Match printable char but no digit */
-  private static final int WHITE = 31;      /*      Match whitespace char */
-  private static final int NWHITE = 32;      /*      Match non-whitespace char */
-  private static final int DIGIT = 33;      /*      Match digit char */
-  private static final int NDIGIT = 34;      /*      Match non-digit char */
-  private static final int HEX = 35;      /*      Match hex char */
-  private static final int NHEX = 36;      /*      Match non-hex char */
-  private static final int OCTAL = 37;      /*      Match octal char */
-  private static final int NOCTAL = 38;      /*      Match non-octal char */
-  private static final int WORD = 39;      /*      Match word char */
-  private static final int NWORD = 40;      /*      Match non-word char */
-  private static final int HEAD = 41;      /*      Match head char */
-  private static final int NHEAD = 42;      /*      Match non-head char */
-  private static final int ALPHA = 43;      /*      Match alpha char */
-  private static final int NALPHA = 44;      /*      Match non-alpha char */
-  private static final int LOWER = 45;      /*      Match lowercase char */
-  private static final int NLOWER = 46;      /*      Match non-lowercase char */
-  private static final int UPPER = 47;      /*      Match uppercase char */
-  private static final int NUPPER = 48;      /*      Match non-uppercase char */
-  private static final int LAST_NL = NUPPER + ADD_NL;
-  private static final int MOPEN = 80;     /* -89       Mark this point in input as start of
+  static final int IDENT = 23;      /*      Match identifier char */
+  static final int SIDENT = 24;      /*      Match identifier char but no digit */
+  static final int KWORD = 25;      /*      Match keyword char */
+  static final int SKWORD = 26;      /*      Match word char but no digit */
+  static final int FNAME = 27;      /*      Match file name char */
+  static final int SFNAME = 28;      /*      Match file name char but no digit */
+  static final int PRINT = 29;      /*      Match printable char */
+  static final int SPRINT = 30;      /*      Match printable char but no digit */
+  static final int WHITE = 31;      /*      Match whitespace char */
+  static final int NWHITE = 32;      /*      Match non-whitespace char */
+  static final int DIGIT = 33;      /*      Match digit char */
+  static final int NDIGIT = 34;      /*      Match non-digit char */
+  static final int HEX = 35;      /*      Match hex char */
+  static final int NHEX = 36;      /*      Match non-hex char */
+  static final int OCTAL = 37;      /*      Match octal char */
+  static final int NOCTAL = 38;      /*      Match non-octal char */
+  static final int WORD = 39;      /*      Match word char */
+  static final int NWORD = 40;      /*      Match non-word char */
+  static final int HEAD = 41;      /*      Match head char */
+  static final int NHEAD = 42;      /*      Match non-head char */
+  static final int ALPHA = 43;      /*      Match alpha char */
+  static final int NALPHA = 44;      /*      Match non-alpha char */
+  static final int LOWER = 45;      /*      Match lowercase char */
+  static final int NLOWER = 46;      /*      Match non-lowercase char */
+  static final int UPPER = 47;      /*      Match uppercase char */
+  static final int NUPPER = 48;      /*      Match non-uppercase char */
+  static final int LAST_NL = NUPPER + ADD_NL;
+  static final int MOPEN = 80;     /* -89       Mark this point in input as start of
                                                  *       \( subexpr.  MOPEN + 0 marks start of
                                                  *       match. */
-  private static final int MCLOSE = 90;     /* -99       Analogous to MOPEN.  MCLOSE + 0 marks
+  static final int MCLOSE = 90;     /* -99       Analogous to MOPEN.  MCLOSE + 0 marks
                                                  *       end of match. */
-  private static final int BACKREF = 100;     /* -109 node Match same string again \1-\9 */
+  static final int BACKREF = 100;     /* -109 node Match same string again \1-\9 */
 
-  private static final int ZOPEN = 110;     /* -119      Mark this point in input as start of
+  static final int ZOPEN = 110;     /* -119      Mark this point in input as start of
                                                  *       \z( subexpr. */
-  private static final int ZCLOSE = 120;     /* -129      Analogous to ZOPEN. */
-  private static final int ZREF = 130;     /* -139 node Match external submatch \z1-\z9 */
+  static final int ZCLOSE = 120;     /* -129      Analogous to ZOPEN. */
+  static final int ZREF = 130;     /* -139 node Match external submatch \z1-\z9 */
 
-  private static final int BRACE_COMPLEX = 140; /* -149 node Match nodes between m & n times */
+  static final int BRACE_COMPLEX = 140; /* -149 node Match nodes between m & n times */
 
-  private static final int NOPEN = 150;     /*      Mark this point in input as start of
+  static final int NOPEN = 150;     /*      Mark this point in input as start of
                                                         \%( subexpr. */
-  private static final int NCLOSE = 151;     /*      Analogous to NOPEN. */
+  static final int NCLOSE = 151;     /*      Analogous to NOPEN. */
 
-  private static final int RE_BOF = 201;     /*      Match "" at beginning of file. */
-  private static final int RE_EOF = 202;     /*      Match "" at end of file. */
-  private static final int CURSOR = 203;     /*      Match location of cursor. */
+  static final int RE_BOF = 201;     /*      Match "" at beginning of file. */
+  static final int RE_EOF = 202;     /*      Match "" at end of file. */
+  static final int CURSOR = 203;     /*      Match location of cursor. */
 
-  private static final int RE_LNUM = 204;     /* nr cmp  Match line number */
-  private static final int RE_COL = 205;     /* nr cmp  Match column number */
-  private static final int RE_VCOL = 206;     /* nr cmp  Match virtual column number */
+  static final int RE_LNUM = 204;     /* nr cmp  Match line number */
+  static final int RE_COL = 205;     /* nr cmp  Match column number */
+  static final int RE_VCOL = 206;     /* nr cmp  Match virtual column number */
 
   private static final int REGMAGIC = 0234;
 
   private static final int REX_SET = 1;
   private static final int REX_USE = 2;
 
-  private static final int MAX_LIMIT = Integer.MAX_VALUE;
+  static final int MAX_LIMIT = Integer.MAX_VALUE;
 
   private static final int NOT_MULTI = 0;
   private static final int MULTI_ONE = 1;
@@ -163,7 +169,7 @@ public class RegExp {
   /*
      * Global work variables for vim_regcomp().
      */
-  private static final int NSUBEXP = 10;
+  static final int NSUBEXP = 10;
 
   private static final int MAGIC_NONE = 1;      /* "\V" very unmagic */
   private static final int MAGIC_OFF = 2;      /* "\M" or 'magic' off */
@@ -198,7 +204,7 @@ public class RegExp {
   private static final int REG_ZPAREN = 2;       /* \z(\) */
   private static final int REG_NPAREN = 3;       /* \%(\) */
 
-  private static boolean WITH_NL(int op) {
+  static boolean WITH_NL(int op) {
     return op >= FIRST_NL && op <= LAST_NL;
   }
 
@@ -465,6 +471,13 @@ public class RegExp {
       return null;
     }
 
+    /* Reuse the program if this pattern has been compiled recently. */
+    r = RegExpCache.get(expr, magic);
+    if (r != null) {
+      had_eol = r.had_eol;
+      return r;
+    }
+
     r = new regprog_T();
 
     /*
@@ -490,6 +503,7 @@ public class RegExp {
     r.reghasz = re_has_z;
     scan = (new CharPointer(r.program)).ref(1);      /* First BRANCH. */
     if (regnext(scan).OP() == END)   /* Only one top-level choice. */ {
+      CharPointer first = null;
       scan = scan.OPERAND();
 
       /* Starting-point info. */
@@ -499,7 +513,8 @@ public class RegExp {
       }
 
       if (scan.OP() == EXACTLY) {
-        r.regstart = scan.OPERAND().charAt();
+        first = scan.OPERAND();
+        r.regstart = first.charAt();
       }
       else if ((scan.OP() == BOW
                 || scan.OP() == EOW
@@ -507,7 +522,8 @@ public class RegExp {
                 || scan.OP() == MOPEN || scan.OP() == NOPEN
                 || scan.OP() == MCLOSE || scan.OP() == NCLOSE)
                && regnext(scan).OP() == EXACTLY) {
-        r.regstart = regnext(scan).OPERAND().charAt();
+        first = regnext(scan).OPERAND();
+        r.regstart = first.charAt();
       }
 
       /*
@@ -522,8 +538,13 @@ public class RegExp {
              * When the r.e. starts with BOW, it is faster to look for a regmust
              * first. Used a lot for "#" and "*" commands. (Added by mool).
              */
-      if ((flags.isSet(SPSTART) || scan.OP() == BOW || scan.OP() == EOW)
-          && !(flags.isSet(HASNL))) {
+      /*
+             * IdeaVim: the regmust is searched with Boyer-Moore-Horspool, which
+             * is cheap enough to do for every pattern that can't match a line
+             * break. Lines that don't contain it are skipped without trying
+             * the pattern at all.
+             */
+      if (!(flags.isSet(HASNL))) {
         longest = null;
         len = 0;
         for (; scan != null; scan = regnext(scan)) {
@@ -535,13 +556,22 @@ public class RegExp {
         }
         if (longest != null) {
           r.regmust = longest.ref(0);
+          r.regmust_finder = new LiteralFinder(longest.substring(len));
+          /* A match can only start where the regmust is found when the
+           * regmust is also the first thing the pattern matches. */
+          r.regmust_starts = longest.equals(first);
         }
         r.regmlen = len;
       }
     }
 
+    r.had_eol = had_eol;
+    r.nfa = NfaProgram.compile(r.program.toString());
+
     if (logger.isDebugEnabled()) logger.debug(regdump(expr, r));
 
+    RegExpCache.put(expr, magic, r);
+
     return r;
   }
 
@@ -710,7 +740,7 @@ public class RegExp {
     CharPointer latest;
     Flags flags = new Flags();
 
-    flagp.init(WORST | HASNL);             /* Tentatively. */
+    flagp.init(WORST);
 
     ret = regnode(BRANCH);
     for (; ; ) {
@@ -722,9 +752,11 @@ public class RegExp {
       /* If one of the branches has width, the whole thing has.  If one of
              * the branches anchors at start-of-line, the whole thing does. */
       flagp.set(flags.get() & (HASWIDTH | SPSTART));
-      /* If one of the branches doesn't match a line-break, the whole thing
-             * doesn't. */
-      flagp.set(flagp.get() & (~HASNL | (flags.get() & HASNL)));
+      /* IdeaVim: Vim clears HASNL when one of the branches doesn't match a
+             * line-break, but the match of "\&" is the last branch, so keep it
+             * when any branch has a line-break. It only decides if regmust can
+             * be checked within a single line. */
+      flagp.set(flags.get() & HASNL);
       if (chain != null) {
         regtail(chain, latest);
       }
@@ -2020,7 +2052,18 @@ public class RegExp {
     }
 
     //return ml_get_buf(reg_buf, reg_firstlnum + lnum, false);
-    return new CharPointer(EditorHelper.getLineBuffer(reg_buf, reg_firstlnum + lnum));
+    return reg_getline(new CharPointer(""), lnum);
+  }
+
+  /*
+     * IdeaVim: Point "ptr" to the line "lnum", which is relative to "reg_firstlnum".
+     * The line isn't copied, "ptr" reads the document text directly.
+     */
+  private @NotNull CharPointer reg_getline(@NotNull CharPointer ptr, int lnum) {
+    final int line = reg_firstlnum + lnum;
+    final int start = EditorHelper.getLineStartOffset(reg_buf, line);
+    final int end = EditorHelper.getLineEndOffset(reg_buf, line, true);
+    return ptr.reset(reg_buf.getDocument().getCharsSequence(), start, end);
   }
 
   /*
@@ -2048,15 +2091,33 @@ public class RegExp {
      * Return zero if there is no match.  Return number of lines contained in the
      * match otherwise.
      */
-  public int vim_regexec_multi(@NotNull regmmatch_T rmp, /*win_T win,*/ Editor buf, int lcount, int lnum, int col)
+  public int vim_regexec_multi(@NotNull regmmatch_T rmp, /*win_T win,*/ Editor buf, int lcount, int lnum, int col) {
+    return vim_regexec_multi(rmp, buf, lcount, lnum, col, 0);
+  }
+
+  /*
+     * IdeaVim: Like above, but stop when System.nanoTime() passes "tm", unless
+     * it is zero. Also stops when the current progress indicator is cancelled.
+     * Once stopped, this and every following call return zero, check
+     * vim_regexec_interrupted() and vim_regexec_timed_out().
+     */
+  public int vim_regexec_multi(@NotNull regmmatch_T rmp, /*win_T win,*/ Editor buf, int lcount, int lnum, int col,
+                               long tm)
 
   /* window in which to search or null */
   /* buffer in which to search */
   /* nr of line to start looking for match */
-  /* column to start looking for match */ {
+  /* column to start looking for match */
+  /* timeout limit or zero */ {
     int r;
     //Editor save_curbuf = curbuf;
 
+    reg_tm = tm;
+    fast_breakcheck();
+    if (got_int) {
+      return 0;
+    }
+
     reg_match = null;
     reg_mmatch = rmp;
     reg_buf = buf;
@@ -2073,6 +2134,43 @@ public class RegExp {
     return r;
   }
 
+  /*
+     * IdeaVim: Return true when a vim_regexec_multi() call stopped before it
+     * finished, because its time ran out or it was cancelled.
+     */
+  public boolean vim_regexec_interrupted() {
+    return got_int;
+  }
+
+  /*
+     * IdeaVim: Return true when a vim_regexec_multi() call stopped because its
+     * time ran out.
+     */
+  public boolean vim_regexec_timed_out() {
+    return reg_timed_out;
+  }
+
+  /*
+     * IdeaVim: Check if matching should stop, because the time given to
+     * vim_regexec_multi() ran out or the progress indicator was cancelled. Sets
+     * "got_int" then. The clock and the indicator are only checked every
+     * BREAKCHECK_SKIP calls.
+     */
+  private void fast_breakcheck() {
+    if (++breakcheck_count < BREAKCHECK_SKIP) {
+      return;
+    }
+    breakcheck_count = 0;
+    if (reg_tm != 0 && System.nanoTime() - reg_tm >= 0) {
+      reg_timed_out = true;
+      got_int = true;
+    }
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    if (indicator != null && indicator.isCanceled()) {
+      got_int = true;
+    }
+  }
+
   /*
      * Match a regexp against a string ("line" points to the string) or multiple
      * lines ("line" is null, use reg_getline()).
@@ -2080,14 +2178,14 @@ public class RegExp {
   private int vim_regexec_both(CharPointer line, int col)
   /* column to start looking for match */ {
     regprog_T prog;
-    CharPointer s;
     int retval;
     reg_tofree = null;
     retval = 0;
 
     if (reg_match == null) {
       prog = reg_mmatch.regprog;
-      line = reg_getline(0);
+      /* IdeaVim: reuse the same pointer for every line, nothing keeps it after the match */
+      line = reg_firstlnum < 0 ? null : reg_getline(reg_line_cursor, 0);
       reg_startpos = reg_mmatch.startpos;
       reg_endpos = reg_mmatch.endpos;
     }
@@ -2118,26 +2216,27 @@ public class RegExp {
 
     /* If there is a "must appear" string, look for it. */
     if (prog.regmust != null) {
-      char c;
-
-      c = prog.regmust.charAt();
-      s = line.ref(col);
-      while ((s = cstrchr(s, c)) != null) {
-        if (cstrncmp(s, prog.regmust, prog.regmlen) == 0) {
-          break;          /* Found it. */
-        }
-        s.inc();
-      }
-      if (s == null)          /* Not present. */ {
+      final int mustcol = line.find(prog.regmust_finder, col, ireg_ic);
+      if (mustcol == -1)          /* Not present. */ {
         // goto theend;
         return retval;
       }
+      /* No match can start before the first occurrence of a leading regmust. */
+      if (prog.regmust_starts && prog.reganch == 0) {
+        col = mustcol;
+      }
     }
 
-    regline = line.ref(0);
+    /* IdeaVim: regline is never modified, so it doesn't need to be a copy */
+    regline = line;
     reglnum = 0;
     out_of_stack = false;
 
+    /* IdeaVim: match with the NFA when 'regexpengine' selects it. */
+    if (reg_match == null && use_nfa(prog)) {
+      return nfa_regexec(prog, prog.nfa, col);
+    }
+
     /* Simplest case: Anchored match need be tried only once. */
     if (prog.reganch != 0) {
       char c;
@@ -2156,12 +2255,11 @@ public class RegExp {
       while (!got_int && !out_of_stack) {
         if (prog.regstart != '\u0000') {
           /* Skip until the char we know it must start with. */
-          s = cstrchr(regline.ref(col), prog.regstart);
-          if (s == null) {
+          col = regline.indexOf(prog.regstart, col, ireg_ic);
+          if (col == -1) {
             retval = 0;
             break;
           }
-          col = s.pointer() - regline.pointer();
         }
 
         retval = regtry(prog, col);
@@ -2190,6 +2288,322 @@ public class RegExp {
     return retval;
   }
 
+  /*
+     * IdeaVim: Check if the NFA engine should be used for "prog".
+     * 'regexpengine' 0 uses it only for patterns that can take exponential time
+     * with backtracking, 1 never uses it. 2 always uses it, except for patterns
+     * it can't match (back references, look-around, etc.).
+     */
+  private static boolean use_nfa(@NotNull regprog_T prog) {
+    if (prog.nfa == null) {
+      return false;
+    }
+    switch (OptionsManager.INSTANCE.getRegexpengine().value()) {
+      case 1:
+        return false;
+      case 2:
+        return true;
+      default:
+        return prog.nfa.nested;
+    }
+  }
+
+  /*
+     * IdeaVim: Threads of the NFA engine at one position, in priority order.
+     */
+  private static class nfa_list_T {
+    int[] pc = new int[16];
+    int[] start = new int[16];      /* column the match started at */
+    int[][] caps = new int[16][];   /* lnum and col of every submatch slot */
+    int size;
+
+    void add(int pc, int start, int[] caps) {
+      if (size == this.pc.length) {
+        this.pc = Arrays.copyOf(this.pc, size * 2);
+        this.start = Arrays.copyOf(this.start, size * 2);
+        this.caps = Arrays.copyOf(this.caps, size * 2);
+      }
+      this.pc[size] = pc;
+      this.start[size] = start;
+      this.caps[size] = caps;
+      size++;
+    }
+  }
+
+  /*
+     * IdeaVim: Match "nfa" by following all threads at the same time, one
+     * character at a time. Start positions are tried from "col" on the first
+     * line like vim_regexec_both() does, a thread that started further left
+     * always wins, and so does a thread the backtracking engine would try first.
+     * Return 0 for failure, number of lines contained in the match otherwise.
+     */
+  private int nfa_regexec(@NotNull regprog_T prog, @NotNull NfaProgram nfa, int col) {
+    if (nfa_marks.length < nfa.size) {
+      nfa_marks = new int[nfa.size];
+      nfa_gen = 0;
+    }
+    nfa_list_T clist = nfa_clist;
+    nfa_list_T nlist = nfa_nlist;
+    clist.size = 0;
+    nfa_next_gen();
+
+    CharPointer line = regline;
+    int lnum = 0;
+    int[] match = null;
+    int match_start = 0;
+    int match_lnum = 0;
+    int match_col = 0;
+    final int startcol = col;
+
+    while (true) {
+      fast_breakcheck();
+      if (got_int) {
+        match = null;
+        break;
+      }
+
+      char c = line.charAt(col);
+
+      /* Add a thread starting here, after all the threads that started earlier. */
+      if (match == null && lnum == 0) {
+        if (prog.reganch != 0) {
+          if (col == startcol && (prog.regstart == '\u0000' || prog.regstart == c ||
+                                  (ireg_ic && Character.toLowerCase(prog.regstart) == Character.toLowerCase(c)))) {
+            nfa_addthread(nfa, clist, 0, col, NFA_NO_CAPS, line, lnum, col);
+          }
+        }
+        else if (prog.regstart == '\u0000') {
+          nfa_addthread(nfa, clist, 0, col, NFA_NO_CAPS, line, lnum, col);
+        }
+        else if (clist.size == 0) {
+          /* Skip until the char we know it must start with. */
+          col = line.indexOf(prog.regstart, col, ireg_ic);
+          if (col == -1) {
+            return 0;
+          }
+          c = line.charAt(col);
+          nfa_addthread(nfa, clist, 0, col, NFA_NO_CAPS, line, lnum, col);
+        }
+        else if (c == prog.regstart || (ireg_ic && (c == Character.toLowerCase(prog.regstart) ||
+                                                    c == Character.toUpperCase(prog.regstart)))) {
+          nfa_addthread(nfa, clist, 0, col, NFA_NO_CAPS, line, lnum, col);
+        }
+      }
+      if (clist.size == 0 && (match != null || lnum != 0 || prog.reganch != 0)) {
+        break;
+      }
+
+      final boolean newline = c == '\u0000' && lnum < reg_maxline;
+      final int next_lnum = newline ? lnum + 1 : lnum;
+      final int next_col = c == '\u0000' ? 0 : col + 1;
+      final CharPointer next_line = newline ? reg_getline(nfa_line_cursor, next_lnum) : line;
+
+      nlist.size = 0;
+      nfa_next_gen();
+      for (int i = 0; i < clist.size; i++) {
+        final int pc = clist.pc[i];
+        final boolean matches;
+        switch (nfa.kind[pc]) {
+          case NfaProgram.MATCH:
+            match = clist.caps[i];
+            match_start = clist.start[i];
+            match_lnum = lnum;
+            match_col = col;
+            /* Threads after this one can only give a match the backtracking engine would try later. */
+            i = clist.size;
+            continue;
+          case NfaProgram.CHAR:
+            matches = c == '\u0000' ? newline && WITH_NL(nfa.op[pc]) : nfa_charmatch(nfa, pc, c);
+            break;
+          case NfaProgram.EXACT:
+            matches = c != '\u0000' && nfa_exactmatch(nfa, pc, c);
+            break;
+          case NfaProgram.LINEBREAK:
+            matches = newline;
+            break;
+          default:
+            matches = false;
+            break;
+        }
+        if (matches) {
+          nfa_addthread(nfa, nlist, nfa.next[pc], clist.start[i], clist.caps[i], next_line, next_lnum, next_col);
+        }
+      }
+
+      if (c == '\u0000' && !newline) {
+        break;
+      }
+      final nfa_list_T tmp = clist;
+      clist = nlist;
+      nlist = tmp;
+      line = next_line;
+      lnum = next_lnum;
+      col = next_col;
+    }
+
+    /* The lists are reused, don't keep the submatches of this text alive. */
+    Arrays.fill(nfa_clist.caps, null);
+    Arrays.fill(nfa_nlist.caps, null);
+
+    if (match == null) {
+      return 0;
+    }
+
+    for (int i = 0; i < NSUBEXP; i++) {
+      reg_startpos[i].lnum = match[2 * i];
+      reg_startpos[i].col = match[2 * i + 1];
+      reg_endpos[i].lnum = match[2 * (NSUBEXP + i)];
+      reg_endpos[i].col = match[2 * (NSUBEXP + i) + 1];
+    }
+    if (reg_startpos[0].lnum < 0) {
+      reg_startpos[0].lnum = 0;
+      reg_startpos[0].col = match_start;
+    }
+    if (reg_endpos[0].lnum < 0) {
+      reg_endpos[0].lnum = match_lnum;
+      reg_endpos[0].col = match_col;
+    }
+    re_extmatch_out = null;
+    reglnum = match_lnum;
+
+    return 1 + match_lnum;
+  }
+
+  private static int[] nfa_no_caps() {
+    final int[] caps = new int[4 * NSUBEXP];
+    Arrays.fill(caps, -1);
+    return caps;
+  }
+
+  private void nfa_next_gen() {
+    if (++nfa_gen == 0) {
+      Arrays.fill(nfa_marks, 0);
+      nfa_gen = 1;
+    }
+  }
+
+  /*
+     * IdeaVim: Add the thread at "pc" to "list", following the instructions
+     * that don't read a character. "line", "lnum" and "col" are the position
+     * the thread is at. A thread for a "pc" that is already in the list is
+     * dropped, the one that is there has a higher priority.
+     */
+  private void nfa_addthread(@NotNull NfaProgram nfa, @NotNull nfa_list_T list, int pc, int start, int[] caps,
+                             @NotNull CharPointer line, int lnum, int col) {
+    int sp = 0;
+    while (true) {
+      if (pc != -1 && nfa_marks[pc] != nfa_gen) {
+        nfa_marks[pc] = nfa_gen;
+        switch (nfa.kind[pc]) {
+          case NfaProgram.JUMP:
+            pc = nfa.next[pc];
+            continue;
+          case NfaProgram.SPLIT:
+            if (sp == nfa_stack_pc.length) {
+              nfa_stack_pc = Arrays.copyOf(nfa_stack_pc, sp * 2);
+              nfa_stack_caps = Arrays.copyOf(nfa_stack_caps, sp * 2);
+            }
+            nfa_stack_pc[sp] = nfa.alt[pc];
+            nfa_stack_caps[sp] = caps;
+            sp++;
+            pc = nfa.next[pc];
+            continue;
+          case NfaProgram.SAVE: {
+            final int slot = nfa.arg[pc];
+            caps = caps.clone();
+            caps[2 * slot] = lnum;
+            caps[2 * slot + 1] = col;
+            pc = nfa.next[pc];
+            continue;
+          }
+          case NfaProgram.ASSERT:
+            if (nfa_assert(nfa, pc, line, lnum, col)) {
+              pc = nfa.next[pc];
+              continue;
+            }
+            break;
+          default:
+            list.add(pc, start, caps);
+            break;
+        }
+      }
+      if (sp == 0) {
+        break;
+      }
+      sp--;
+      pc = nfa_stack_pc[sp];
+      caps = nfa_stack_caps[sp];
+      nfa_stack_caps[sp] = null;
+    }
+  }
+
+  /*
+     * IdeaVim: Check the zero-width instruction "pc" at a position, like regmatch() does.
+     */
+  private boolean nfa_assert(@NotNull NfaProgram nfa, int pc, @NotNull CharPointer line, int lnum, int col) {
+    final char c = line.charAt(col);
+    switch (nfa.op[pc]) {
+      case BOL:
+        return col == 0;
+      case EOL:
+        return c == '\u0000';
+      case RE_BOF:
+        return lnum == 0 && col == 0 && reg_firstlnum == 0;
+      case RE_EOF:
+        return lnum == reg_maxline && c == '\u0000';
+      case CURSOR: {
+        LogicalPosition curpos = reg_buf.getCaretModel().getLogicalPosition();
+        return lnum + reg_firstlnum == curpos.line && col == curpos.column;
+      }
+      case RE_LNUM:
+        return re_num_cmp(lnum + reg_firstlnum, nfa.program.ref(nfa.node[pc]));
+      case RE_COL:
+        return re_num_cmp(col + 1, nfa.program.ref(nfa.node[pc]));
+      case BOW:
+        return c != '\u0000' && CharacterClasses.isWord(c) && (col == 0 || !CharacterClasses.isWord(line.charAt(col - 1)));
+      case EOW:
+        return col != 0 && CharacterClasses.isWord(line.charAt(col - 1)) && (c == '\u0000' || !CharacterClasses.isWord(c));
+      default:
+        return false;
+    }
+  }
+
+  /*
+     * IdeaVim: Check if "c" matches the character instruction "pc", like regrepeat() does.
+     */
+  private boolean nfa_charmatch(@NotNull NfaProgram nfa, int pc, char c) {
+    int op = nfa.op[pc];
+    if (WITH_NL(op)) {
+      op -= ADD_NL;
+    }
+    switch (op) {
+      case EXACTLY: {
+        final char o = nfa.program.charAt(nfa.node[pc] + 3);
+        return c == o || (ireg_ic && (c == Character.toUpperCase(o) || c == Character.toLowerCase(o)));
+      }
+      case ANYOF:
+      case ANYBUT:
+        return (nfa.program.indexOf(c, nfa.node[pc] + 3, ireg_ic) != -1) == (op == ANYOF);
+      default:
+        return reg_classmatch(op, c);
+    }
+  }
+
+  /*
+     * IdeaVim: Check if "c" matches the character of an EXACTLY node, like regmatch() does.
+     */
+  private boolean nfa_exactmatch(@NotNull NfaProgram nfa, int pc, char c) {
+    final char o = (char)nfa.op[pc];
+    if (c == o || !ireg_ic) {
+      return c == o;
+    }
+    if (Character.toLowerCase(c) == Character.toLowerCase(o)) {
+      return true;
+    }
+    /* Only the first character is compared in lower case alone. */
+    return nfa.arg[pc] != 0 && Character.toUpperCase(c) == Character.toUpperCase(o);
+  }
+
   private static class reg_extmatch_T {
     @NotNull String[] matches = new String[NSUBEXP];
   }
@@ -2233,7 +2647,13 @@ public class RegExp {
       need_clear_zsubexpr = true;
     }
 
-    if (regmatch((new CharPointer(prog.program)).ref(1))) {
+    /* IdeaVim: regmatch() never modifies the program, so it reads a String copy of it. This avoids the synchronized
+     * StringBuffer.charAt() for every node, and the pointer is only created once per program. */
+    if (prog != reg_prog) {
+      reg_prog = prog;
+      reg_prog_start = new CharPointer(prog.program.toString()).ref(1);
+    }
+    if (regmatch(reg_prog_start)) {
       cleanup_subexpr();
       if (reg_match == null) {
         if (reg_startpos[0].lnum < 0) {
@@ -2306,7 +2726,7 @@ public class RegExp {
 
     /* Some patterns my cause a long time to match, even though they are not
          * illegal.  E.g., "\([a-z]\+\)\+Q".  Allow breaking them with CTRL-C. */
-    //fast_breakcheck(); - TODO
+    fast_breakcheck();
 
     while (scan != null) {
       if (got_int || out_of_stack) {
@@ -2409,189 +2829,33 @@ public class RegExp {
             break; /* Matched with EOW */
 
           case ANY:
-            if (c == '\u0000') {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case IDENT:
-            if (!Character.isJavaIdentifierPart(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case SIDENT:
-            if (Character.isDigit(reginput.charAt()) || !Character.isJavaIdentifierPart(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case KWORD:
-            if (!CharacterClasses.isWord(reginput.charAt())) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case SKWORD:
-            if (Character.isDigit(reginput.charAt()) || !CharacterClasses.isWord(reginput.charAt())) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case FNAME:
-            if (!CharacterClasses.isFile(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case SFNAME:
-            if (Character.isDigit(reginput.charAt()) || !CharacterClasses.isFile(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case PRINT:
-            if (!CharacterClasses.isPrint(reginput.charAt())) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case SPRINT:
-            if (Character.isDigit(reginput.charAt()) || !CharacterClasses.isPrint(reginput.charAt())) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case WHITE:
-            if (!CharacterClasses.isWhite(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NWHITE:
-            if (c == '\u0000' || CharacterClasses.isWhite(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case DIGIT:
-            if (!Character.isDigit(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NDIGIT:
-            if (c == '\u0000' || Character.isDigit(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case HEX:
-            if (!CharacterClasses.isHex(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NHEX:
-            if (c == '\u0000' || CharacterClasses.isHex(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case OCTAL:
-            if (!CharacterClasses.isOctal(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NOCTAL:
-            if (c == '\u0000' || CharacterClasses.isOctal(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case WORD:
-            if (!CharacterClasses.isWord(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NWORD:
-            if (c == '\u0000' || CharacterClasses.isWord(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case HEAD:
-            if (!CharacterClasses.isHead(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NHEAD:
-            if (c == '\u0000' || CharacterClasses.isHead(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case ALPHA:
-            if (!CharacterClasses.isAlpha(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NALPHA:
-            if (c == '\u0000' || CharacterClasses.isAlpha(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case LOWER:
-            if (!CharacterClasses.isLower(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NLOWER:
-            if (c == '\u0000' || CharacterClasses.isLower(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case UPPER:
-            if (!CharacterClasses.isUpper(c)) {
-              return false;
-            }
-            reginput.inc();
-            break;
-
           case NUPPER:
-            if (c == '\u0000' || CharacterClasses.isUpper(c)) {
+            if (!reg_classmatch(op, c)) {
               return false;
             }
             reginput.inc();
@@ -2626,7 +2890,8 @@ public class RegExp {
             if (c == '\u0000') {
               return false;
             }
-            if ((cstrchr(scan.OPERAND(), c) == null) == (op == ANYOF)) {
+            /* IdeaVim: cstrchr(scan.OPERAND(), c) without creating pointers */
+            if ((scan.indexOf(c, 3, ireg_ic) == -1) == (op == ANYOF)) {
               return false;
             }
             reginput.inc();
@@ -3048,7 +3313,7 @@ public class RegExp {
                     return false;
                   }
                   reginput = regline.ref(regline.strlen());
-                  // fast_breakcheck(); - TOOD
+                  fast_breakcheck();
                   if (got_int || out_of_stack) {
                     return false;
                   }
@@ -3228,6 +3493,71 @@ public class RegExp {
     return false;
   }
 
+  /*
+     * IdeaVim: Check if "c" matches the character class "op" (ANY to NUPPER, without ADD_NL).
+     * Used by regmatch() and the NFA engine.
+     */
+  static boolean reg_classmatch(int op, char c) {
+    switch (op) {
+      case ANY:
+        return c != '\u0000';
+      case IDENT:
+        return Character.isJavaIdentifierPart(c);
+      case SIDENT:
+        return !Character.isDigit(c) && Character.isJavaIdentifierPart(c);
+      case KWORD:
+        return CharacterClasses.isWord(c);
+      case SKWORD:
+        return !Character.isDigit(c) && CharacterClasses.isWord(c);
+      case FNAME:
+        return CharacterClasses.isFile(c);
+      case SFNAME:
+        return !Character.isDigit(c) && CharacterClasses.isFile(c);
+      case PRINT:
+        return CharacterClasses.isPrint(c);
+      case SPRINT:
+        return !Character.isDigit(c) && CharacterClasses.isPrint(c);
+      case WHITE:
+        return CharacterClasses.isWhite(c);
+      case NWHITE:
+        return c != '\u0000' && !CharacterClasses.isWhite(c);
+      case DIGIT:
+        return Character.isDigit(c);
+      case NDIGIT:
+        return c != '\u0000' && !Character.isDigit(c);
+      case HEX:
+        return CharacterClasses.isHex(c);
+      case NHEX:
+        return c != '\u0000' && !CharacterClasses.isHex(c);
+      case OCTAL:
+        return CharacterClasses.isOctal(c);
+      case NOCTAL:
+        return c != '\u0000' && !CharacterClasses.isOctal(c);
+      case WORD:
+        return CharacterClasses.isWord(c);
+      case NWORD:
+        return c != '\u0000' && !CharacterClasses.isWord(c);
+      case HEAD:
+        return CharacterClasses.isHead(c);
+      case NHEAD:
+        return c != '\u0000' && !CharacterClasses.isHead(c);
+      case ALPHA:
+        return CharacterClasses.isAlpha(c);
+      case NALPHA:
+        return c != '\u0000' && !CharacterClasses.isAlpha(c);
+      case LOWER:
+        return CharacterClasses.isLower(c);
+      case NLOWER:
+        return c != '\u0000' && !CharacterClasses.isLower(c);
+      case UPPER:
+        return CharacterClasses.isUpper(c);
+      case NUPPER:
+        return c != '\u0000' && !CharacterClasses.isUpper(c);
+      default:
+        return false;
+    }
+  }
+
   /*
      * regrepeat - repeatedly match something simple, return how many.
      * Advances reginput (and reglnum) to just after the matched chars.
@@ -3488,7 +3818,7 @@ public class RegExp {
             }
           }
           else {
-            if ((cstrchr(opnd, scan.charAt()) == null) == (testval == 1)) {
+            if ((opnd.indexOf(scan.charAt(), 0, ireg_ic) == -1) == (testval == 1)) {
               break;
             }
             scan.inc();
@@ -3624,7 +3954,7 @@ public class RegExp {
   private void reg_nextline() {
     regline = reg_getline(++reglnum);
     reginput = regline.ref(0);
-    // fast_breakcheck(); TODO
+    fast_breakcheck();
   }
 
   /*
@@ -4641,10 +4971,14 @@ public class RegExp {
     char regstart;
     char reganch;
     @Nullable CharPointer regmust;
+    @Nullable LiteralFinder regmust_finder;
+    boolean regmust_starts;
     int regmlen;
     int regflags;
     char reghasz;
+    boolean had_eol;
     @NotNull StringBuffer program = new StringBuffer();
+    @Nullable NfaProgram nfa;     /* IdeaVim: null if the NFA engine can't match this program */
   }
 
   private static class MinMax {
@@ -4762,6 +5096,19 @@ public class RegExp {
   private int reglnum;        /* line number, relative to first line */
   private @Nullable CharPointer regline;       /* start of current line */
   private CharPointer reginput;      /* current input, points into "regline" */
+  private final @NotNull CharPointer reg_line_cursor = new CharPointer("");  /* IdeaVim: first line of a multi-line match */
+  private @Nullable regprog_T reg_prog;          /* IdeaVim: program of "reg_prog_start" */
+  private @Nullable CharPointer reg_prog_start;  /* IdeaVim: first node of "reg_prog" */
+
+  /* IdeaVim: work lists of the NFA engine, reused for every line */
+  private static final int[] NFA_NO_CAPS = nfa_no_caps();
+  private final @NotNull nfa_list_T nfa_clist = new nfa_list_T();
+  private final @NotNull nfa_list_T nfa_nlist = new nfa_list_T();
+  private int[] nfa_marks = new int[0];      /* generation a pc was last added to a list in */
+  private int nfa_gen;
+  private int[] nfa_stack_pc = new int[16];
+  private int[][] nfa_stack_caps = new int[16][];
+  private final @NotNull CharPointer nfa_line_cursor = new CharPointer("");  /* lines after the first one */
 
   private boolean need_clear_subexpr;     /* subexpressions still need to be
     * cleared */
@@ -4821,6 +5168,12 @@ public class RegExp {
 
   private boolean got_int = false;
 
+  /* IdeaVim: time limit of vim_regexec_multi() */
+  private static final int BREAKCHECK_SKIP = 100;
+  private long reg_tm;                /* stop when System.nanoTime() passes this, zero for no limit */
+  private boolean reg_timed_out = false;
+  private int breakcheck_count = 0;
+
   /*
     * The arguments from BRACE_LIMITS are stored here.  They are actually local
     * to regmatch(), but they are here to reduce the amount of stack space used
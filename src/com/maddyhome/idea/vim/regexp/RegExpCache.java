@@ -0,0 +1,112 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.maddyhome.idea.vim.regexp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of compiled regexp programs used by {@link RegExp#vim_regcomp(String, int)}.
+ *
+ * A compiled program doesn't depend on 'ignorecase' (it is applied when the program is executed), so the pattern text
+ * and its magic flag are enough to identify it. Programs are never modified after compilation, so the same instance
+ * can be shared between several {@link RegExp} matchers.
+ */
+public final class RegExpCache {
+  private static final int MAX_SIZE = 64;
+
+  private static final Map<Key, RegExp.regprog_T> cache = new LinkedHashMap<Key, RegExp.regprog_T>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, RegExp.regprog_T> eldest) {
+      return size() > MAX_SIZE;
+    }
+  };
+
+  private static long hits = 0;
+  private static long misses = 0;
+
+  private RegExpCache() {
+  }
+
+  static synchronized @Nullable RegExp.regprog_T get(@NotNull String pattern, int magic) {
+    final RegExp.regprog_T prog = cache.get(new Key(pattern, magic));
+    if (prog != null) {
+      hits++;
+    }
+    else {
+      misses++;
+    }
+    return prog;
+  }
+
+  static synchronized void put(@NotNull String pattern, int magic, @NotNull RegExp.regprog_T prog) {
+    cache.put(new Key(pattern, magic), prog);
+  }
+
+  public static synchronized void clear() {
+    cache.clear();
+    hits = 0;
+    misses = 0;
+  }
+
+  /**
+   * Number of {@link RegExp#vim_regcomp(String, int)} calls that reused an already compiled program
+   */
+  public static synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of {@link RegExp#vim_regcomp(String, int)} calls that had to compile the pattern
+   */
+  public static synchronized long getMisses() {
+    return misses;
+  }
+
+  public static synchronized int size() {
+    return cache.size();
+  }
+
+  private static final class Key {
+    private final @NotNull String pattern;
+    private final boolean magic;
+
+    Key(@NotNull String pattern, int magic) {
+      this.pattern = pattern;
+      this.magic = magic != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return magic == key.magic && pattern.equals(key.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(pattern, magic);
+    }
+  }
+}
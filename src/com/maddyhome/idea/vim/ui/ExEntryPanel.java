@@ -53,6 +53,11 @@ import java.awt.event.ComponentListener;
  * This is used to enter ex commands such as searches and "colon" commands
  */
 public class ExEntryPanel extends JPanel {
+  /**
+   * The time in ms to wait for the next typed character before searching for incsearch
+   */
+  private static final int INCSEARCH_DELAY = 50;
+
   private static ExEntryPanel instance;
   private static ExEntryPanel instanceWithoutShortcuts;
 
@@ -78,6 +83,8 @@ public class ExEntryPanel extends JPanel {
       new ExShortcutKeyAction(this).registerCustomShortcutSet();
     }
 
+    incSearchTimer.setRepeats(false);
+
     updateUI();
   }
 
@@ -188,6 +195,8 @@ public class ExEntryPanel extends JPanel {
       // incsearch won't change in the lifetime of this activation
       if (isIncSearchEnabled()) {
         entry.getDocument().removeDocumentListener(incSearchDocumentListener);
+        incSearchTimer.stop();
+        incSearchGeneration++;
 
         // TODO: Reduce the amount of unnecessary work here
         // If incsearch and hlsearch are enabled, and if this is a search panel, we'll have all of the results correctly
@@ -258,69 +267,96 @@ public class ExEntryPanel extends JPanel {
   private final @NotNull DocumentListener incSearchDocumentListener = new DocumentAdapter() {
     @Override
     protected void textChanged(@NotNull DocumentEvent e) {
-      final Editor editor = entry.getEditor();
-
-      boolean searchCommand = false;
-      LineRange searchRange = null;
-      char separator = label.getText().charAt(0);
-      String searchText = entry.getActualText();
-      if (label.getText().equals(":")) {
-        if (searchText.isEmpty()) return;
-        final ExCommand command = getIncsearchCommand(searchText);
-        if (command == null) {
-          return;
-        }
-        searchCommand = true;
-        searchText = "";
-        final String argument = command.getArgument();
-        if (argument.length() > 1) {  // E.g. skip '/' in `:%s/`. `%` is range, `s` is command, `/` is argument
-          separator = argument.charAt(0);
-          searchText = argument.substring(1);
-        }
-        if (searchText.length() == 0) {
-          VimPlugin.getSearch().resetIncsearchHighlights();
-          return;
-        }
-        searchRange = command.getLineRange(editor);
+      // A new search supersedes the one that is still running, if there is one
+      incSearchGeneration++;
+      if (ApplicationManager.getApplication().isUnitTestMode()) {
+        updateIncsearch();
       }
-
-      final String labelText = label.getText();
-      if (labelText.equals("/") || labelText.equals("?") || searchCommand) {
-        final boolean forwards = !labelText.equals("?");  // :s, :g, :v are treated as forwards
-        final String pattern;
-        final CharPointer p = new CharPointer(searchText);
-        final CharPointer end = RegExp.skip_regexp(new CharPointer(searchText), separator, true);
-        pattern = p.substring(end.pointer() - p.pointer());
-
-        VimPlugin.getEditor().closeEditorSearchSession(editor);
-        final int matchOffset = VimPlugin.getSearch().updateIncsearchHighlights(editor, pattern, forwards, caretOffset, searchRange);
-        if (matchOffset != -1) {
-          MotionGroup.moveCaret(editor, editor.getCaretModel().getPrimaryCaret(), matchOffset);
-        }
-        else {
-          resetCaretOffset(editor);
-        }
+      else {
+        incSearchTimer.restart();
       }
     }
+  };
 
-    @Contract("null -> null")
-    private @Nullable ExCommand getIncsearchCommand(@Nullable String commandText) {
-      if (commandText == null) return null;
-      try {
-        final ExCommand exCommand = CommandParser.getInstance().parse(commandText);
-        final String command = exCommand.getCommand();
-        // TODO: Add global, vglobal, smagic and snomagic here when the commands are supported
-        if ("substitute".startsWith(command)) {
-          return exCommand;
-        }
+  /**
+   * Highlights the matches of the pattern that is typed so far and moves the caret to the current match. This runs
+   * once the user stops typing for {@link #INCSEARCH_DELAY} ms, and the document is searched in the background
+   */
+  private void updateIncsearch() {
+    if (!active) return;
+    final Editor editor = entry.getEditor();
+
+    boolean searchCommand = false;
+    LineRange searchRange = null;
+    char separator = label.getText().charAt(0);
+    String searchText = entry.getActualText();
+    if (label.getText().equals(":")) {
+      if (searchText.isEmpty()) return;
+      final ExCommand command = getIncsearchCommand(searchText);
+      if (command == null) {
+        return;
       }
-      catch(Exception e) {
-        logger.warn("Cannot parse command for incsearch", e);
+      searchCommand = true;
+      searchText = "";
+      final String argument = command.getArgument();
+      if (argument.length() > 1) {  // E.g. skip '/' in `:%s/`. `%` is range, `s` is command, `/` is argument
+        separator = argument.charAt(0);
+        searchText = argument.substring(1);
+      }
+      if (searchText.length() == 0) {
+        VimPlugin.getSearch().resetIncsearchHighlights();
+        return;
       }
+      searchRange = command.getLineRange(editor);
+    }
 
-      return null;
+    final String labelText = label.getText();
+    if (labelText.equals("/") || labelText.equals("?") || searchCommand) {
+      final boolean forwards = !labelText.equals("?");  // :s, :g, :v are treated as forwards
+      final String pattern;
+      final CharPointer p = new CharPointer(searchText);
+      final CharPointer end = RegExp.skip_regexp(new CharPointer(searchText), separator, true);
+      pattern = p.substring(end.pointer() - p.pointer());
+
+      VimPlugin.getEditor().closeEditorSearchSession(editor);
+      if (ApplicationManager.getApplication().isUnitTestMode()) {
+        moveCaretToMatch(editor,
+                         VimPlugin.getSearch().updateIncsearchHighlights(editor, pattern, forwards, caretOffset, searchRange));
+        return;
+      }
+      final int generation = incSearchGeneration;
+      VimPlugin.getSearch().updateIncsearchHighlightsInBackground(editor, pattern, forwards, caretOffset, searchRange,
+                                                                  () -> !active || generation != incSearchGeneration,
+                                                                  matchOffset -> moveCaretToMatch(editor, matchOffset));
     }
-  };
+  }
+
+  private void moveCaretToMatch(@NotNull Editor editor, int matchOffset) {
+    if (matchOffset != -1) {
+      MotionGroup.moveCaret(editor, editor.getCaretModel().getPrimaryCaret(), matchOffset);
+    }
+    else {
+      resetCaretOffset(editor);
+    }
+  }
+
+  @Contract("null -> null")
+  private @Nullable ExCommand getIncsearchCommand(@Nullable String commandText) {
+    if (commandText == null) return null;
+    try {
+      final ExCommand exCommand = CommandParser.getInstance().parse(commandText);
+      final String command = exCommand.getCommand();
+      // TODO: Add global, vglobal, smagic and snomagic here when the commands are supported
+      if ("substitute".startsWith(command)) {
+        return exCommand;
+      }
+    }
+    catch(Exception e) {
+      logger.warn("Cannot parse command for incsearch", e);
+    }
+
+    return null;
+  }
 
   /**
    * Gets the label for the ex entry. This should be one of ":", "/", or "?"
@@ -427,7 +463,7 @@ public class ExEntryPanel extends JPanel {
     return OptionsManager.INSTANCE.getIncsearch().isSet();
   }
 
-  private boolean active;
+  private volatile boolean active;
   private int count;
 
   // UI stuff
@@ -442,6 +478,11 @@ public class ExEntryPanel extends JPanel {
   private int verticalOffset;
   private int horizontalOffset;
   private int caretOffset;
+  /**
+   * Counts the changes of the text, so that the search for an older text can tell that it is no longer needed
+   */
+  private volatile int incSearchGeneration;
+  private final @NotNull Timer incSearchTimer = new Timer(INCSEARCH_DELAY, e -> updateIncsearch());
 
   private final @NotNull ComponentListener resizePanelListener = new ComponentAdapter() {
     @Override
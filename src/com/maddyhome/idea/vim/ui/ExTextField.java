@@ -39,7 +39,6 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.Date;
-import java.util.List;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
@@ -133,10 +132,8 @@ public class ExTextField extends JTextField {
         break;
     }
 
-    if (hkey != null) {
-      history = VimPlugin.getHistory().getEntries(hkey, 0, 0);
-      histIndex = history.size();
-    }
+    historyKey = hkey;
+    historyNumber = Integer.MAX_VALUE;
   }
 
   /**
@@ -148,47 +145,29 @@ public class ExTextField extends JTextField {
     lastEntry = super.getText();
   }
 
+  /**
+   * Selects the previous or next history entry. With filter, only an entry starting with the typed text is selected.
+   * After the newest entry comes the typed text.
+   */
   void selectHistory(boolean isUp, boolean filter) {
-    int dir = isUp ? -1 : 1;
-    if (histIndex + dir < 0 || histIndex + dir > history.size()) {
+    if (historyKey == null || !isUp && historyNumber == Integer.MAX_VALUE) {
       VimPlugin.indicateError();
 
       return;
     }
 
-    if (filter) {
-      for (int i = histIndex + dir; i >= 0 && i <= history.size(); i += dir) {
-        String txt;
-        if (i == history.size()) {
-          txt = lastEntry;
-        }
-        else {
-          HistoryGroup.HistoryEntry entry = history.get(i);
-          txt = entry.getEntry();
-        }
-
-        if (txt.startsWith(lastEntry)) {
-          updateText(txt);
-          histIndex = i;
-
-          return;
-        }
-      }
-
-      VimPlugin.indicateError();
+    final HistoryGroup.HistoryEntry entry =
+      VimPlugin.getHistory().findEntry(historyKey, filter ? lastEntry : "", historyNumber, isUp);
+    if (entry != null) {
+      historyNumber = entry.getNumber();
+      updateText(entry.getEntry());
+    }
+    else if (!isUp) {
+      historyNumber = Integer.MAX_VALUE;
+      updateText(lastEntry);
     }
     else {
-      histIndex = histIndex + dir;
-      String txt;
-      if (histIndex == history.size()) {
-        txt = lastEntry;
-      }
-      else {
-        HistoryGroup.HistoryEntry entry = history.get(histIndex);
-        txt = entry.getEntry();
-      }
-
-      updateText(txt);
+      VimPlugin.indicateError();
     }
   }
 
@@ -557,8 +536,11 @@ public class ExTextField extends JTextField {
   private CommandLineCaret caret;
   private String lastEntry;
   private String actualText;
-  private List<HistoryGroup.HistoryEntry> history;
-  private int histIndex = 0;
+  private @Nullable String historyKey;
+  /**
+   * The number of the selected history entry, or Integer.MAX_VALUE for the typed text
+   */
+  private int historyNumber = Integer.MAX_VALUE;
   private @Nullable ExEditorKit.MultiStepAction currentAction;
   private char currentActionPromptCharacter;
   private int currentActionPromptCharacterOffset = -1;
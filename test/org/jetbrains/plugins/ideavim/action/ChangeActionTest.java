@@ -18,6 +18,7 @@
 
 package org.jetbrains.plugins.ideavim.action;
 
+import com.intellij.openapi.util.text.StringUtil;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.command.CommandState;
 import org.jetbrains.plugins.ideavim.VimTestCase;
@@ -395,6 +396,23 @@ public class ChangeActionTest extends VimTestCase {
            "foo baz\n" + "fo<caret>o quux\n", CommandState.Mode.COMMAND, CommandState.SubMode.NONE);
   }
 
+  // |i| |count|
+  public void testInsertWithCountAndBackspace() {
+    doTest(parseKeys("3i", "abc", "<BS>", "d", "<Esc>"),
+           "<caret>x\n",
+           "abdabdab<caret>dx\n", CommandState.Mode.COMMAND, CommandState.SubMode.NONE);
+  }
+
+  // |A| |.|
+  public void testRepeatLongInsertWithCount() {
+    final String text = StringUtil.repeat("foo bar ", 100);
+    configureByText("<caret>\n");
+    typeText(parseKeys("A"));
+    typeText(stringToKeys(text));
+    typeText(parseKeys("<Esc>", "3."));
+    myFixture.checkResult(StringUtil.repeat(text, 4) + "\n");
+  }
+
   // VIM-511 |.|
   public void testRepeatWithParensAndQuotesAutoInsertion() {
     configureByJavaText("class C <caret>{\n" +
@@ -92,6 +92,17 @@ public class CopyActionTest extends VimTestCase {
     myFixture.checkResult("hellolo world\n");
   }
 
+  public void testYankAppendRegisterKeepsUnnamedRegister() {
+    typeTextInFile(parseKeys("\"ayl", "l", "\"Ayl"),
+      "hel<caret>lo world\n");
+    final Register register = VimPlugin.getRegister().getRegister('a');
+    assertNotNull(register);
+    assertEquals("lo", register.getText());
+    final Register unnamedRegister = VimPlugin.getRegister().getRegister('"');
+    assertNotNull(unnamedRegister);
+    assertEquals("o", unnamedRegister.getText());
+  }
+
   public void testYankWithInvalidRegister() {
     typeTextInFile(parseKeys("\"&"),
       "hel<caret>lo world\n");
@@ -18,12 +18,19 @@
 
 package org.jetbrains.plugins.ideavim.action;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Ref;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.command.CommandState;
 import com.maddyhome.idea.vim.common.Register;
 import com.maddyhome.idea.vim.group.RegisterGroup;
 import com.maddyhome.idea.vim.helper.StringHelper;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.plugins.ideavim.VimTestCase;
 
 import static com.maddyhome.idea.vim.helper.StringHelper.parseKeys;
@@ -58,4 +65,75 @@ public class MacroActionTest extends VimTestCase {
     assertNotNull(register);
     assertEquals("i<C-K>OK<Esc>", StringHelper.toKeyNotation(register.getKeys()));
   }
+
+  public void testRecordMacroAppendedToYankedText() {
+    typeTextInFile(parseKeys("\"ayl", "qA", "i<Esc>", "q"), "<caret>one two three\n");
+    final Register register = VimPlugin.getRegister().getRegister('a');
+    assertNotNull(register);
+    assertEquals("oi<Esc>", StringHelper.toKeyNotation(register.getKeys()));
+    assertNull(register.getText());
+    final Register unnamedRegister = VimPlugin.getRegister().getRegister('"');
+    assertNotNull(unnamedRegister);
+    assertEquals("o", unnamedRegister.getText());
+  }
+
+  public void testPlaybackMacroWithCount() {
+    configureByText("<caret>one two three four five\n");
+    VimPlugin.getRegister().setKeys('a', parseKeys("w"));
+    typeText(parseKeys("3@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    assertOffset(14);
+  }
+
+  // |@| |u|
+  public void testUndoRepeatedPlaybackUndoesOnlyLastPlayback() {
+    configureByText("<caret>one\n");
+    VimPlugin.getRegister().setKeys('a', parseKeys("Ax<Esc>"));
+    typeText(parseKeys("@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    typeText(parseKeys("@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    myFixture.checkResult("onexx\n");
+    typeText(parseKeys("u"));
+    myFixture.checkResult("onex\n");
+  }
+
+  public void testPlaybackMacroWithExCommand() {
+    configureByText("<caret>one\ntwo\nthree\n");
+    VimPlugin.getRegister().setKeys('a', parseKeys(":s/^/x/<Enter>", "j"));
+    typeText(parseKeys("2@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    myFixture.checkResult("xone\nxtwo\nthree\n");
+  }
+
+  public void testPlaybackNestedMacroBeforeRestOfMacro() {
+    configureByText("<caret>x\n");
+    VimPlugin.getRegister().setKeys('b', parseKeys("Ab<Esc>"));
+    VimPlugin.getRegister().setKeys('a', parseKeys("Aa<Esc>", "@b", "Ac<Esc>"));
+    typeText(parseKeys("2@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    myFixture.checkResult("xabcabc\n");
+    typeText(parseKeys("u"));
+    myFixture.checkResult("x\n");
+  }
+
+  public void testPlaybackKeysAfterExCommandInNextEvent() {
+    configureByText("<caret>one\n");
+    VimPlugin.getRegister().setKeys('a', parseKeys(":s/one/two/<Enter>", "Ax<Esc>"));
+    // Stands in for the focus events that closing the ex entry queues, the keys after it must run after them
+    final Ref<String> textAfterExCommand = Ref.create();
+    myFixture.getEditor().getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void documentChanged(@NotNull DocumentEvent event) {
+        if (textAfterExCommand.isNull()) {
+          final Document document = event.getDocument();
+          ApplicationManager.getApplication().invokeLater(() -> textAfterExCommand.set(document.getText()));
+        }
+      }
+    }, getTestRootDisposable());
+    typeText(parseKeys("@a"));
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+    assertEquals("two\n", textAfterExCommand.get());
+    myFixture.checkResult("twox\n");
+  }
 }
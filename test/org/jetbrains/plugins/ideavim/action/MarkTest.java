@@ -18,6 +18,7 @@
 
 package org.jetbrains.plugins.ideavim.action;
 
+import com.intellij.openapi.editor.Editor;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.command.CommandState;
 import com.maddyhome.idea.vim.common.Mark;
@@ -111,6 +112,21 @@ public class MarkTest extends VimTestCase {
     assertEquals(2, mark.getCol());
   }
 
+  // |m|
+  public void testOnlyMarksAfterChangedLineAreMoved() {
+    typeTextInFile(parseKeys("ma", "j", "mb", "2j", "mc", "j", "md", "2k", "dd", "gg", "Onew<Esc>"),
+                   "<caret>one\n" +
+                   "two\n" +
+                   "three\n" +
+                   "four\n" +
+                   "five\n");
+    final Editor editor = myFixture.getEditor();
+    assertEquals(1, VimPlugin.getMark().getMark(editor, 'a').getLogicalLine());
+    assertEquals(2, VimPlugin.getMark().getMark(editor, 'b').getLogicalLine());
+    assertEquals(3, VimPlugin.getMark().getMark(editor, 'c').getLogicalLine());
+    assertEquals(4, VimPlugin.getMark().getMark(editor, 'd').getLogicalLine());
+  }
+
   // |m|
   public void testMarkIsMovedDownWhenLinesAreInsertedAboveWithIndentation() {
     typeTextInFile(parseKeys("mY", "Obiff"), "    foo\n" +
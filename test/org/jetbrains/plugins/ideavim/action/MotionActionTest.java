@@ -278,6 +278,12 @@ public class MotionActionTest extends VimTestCase {
     myFixture.checkResult("(text \"with quotes()\")");
   }
 
+  // VIM-1287 |d| |v_i(|
+  public void testSelectInsideForStringLiteralOnSecondLine() {
+    typeTextInFile(parseKeys("di("), "foo\n(text \"with quotes(and <caret>braces)\")");
+    myFixture.checkResult("foo\n(text \"with quotes()\")");
+  }
+
   // VIM-1287 |d| |v_i{|
   public void testBadlyNestedBlockInsideString() {
     configureByText("{\"{foo, <caret>bar\", baz}}");
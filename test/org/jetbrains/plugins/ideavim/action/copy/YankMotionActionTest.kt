@@ -18,6 +18,7 @@
 
 package org.jetbrains.plugins.ideavim.action.copy
 
+import com.intellij.openapi.editor.CaretStateTransferableData
 import com.maddyhome.idea.vim.VimPlugin
 import com.maddyhome.idea.vim.helper.StringHelper
 import junit.framework.TestCase
@@ -55,4 +56,14 @@ class YankMotionActionTest : VimTestCase() {
 
     TestCase.assertEquals(initialOffset, myFixture.editor.caretModel.offset)
   }
+
+  fun `test yank large text keeps only caret data`() {
+    val line = "I found it in a legendary land\n"
+    configureByText(c + line.repeat(4000))
+    typeText(StringHelper.parseKeys("yG"))
+
+    val register = VimPlugin.getRegister().lastRegister ?: kotlin.test.fail()
+    TestCase.assertEquals(line.length * 4000, register.text?.length)
+    TestCase.assertEquals(listOf(CaretStateTransferableData::class.java), register.transferableData.map { it.javaClass })
+  }
 }
@@ -26,6 +26,7 @@ import com.maddyhome.idea.vim.ex.ExBeanClass
 import com.maddyhome.idea.vim.ex.ExCommand
 import com.maddyhome.idea.vim.ex.commands
 import com.maddyhome.idea.vim.ex.ranges.Ranges
+import com.maddyhome.idea.vim.helper.StringHelper.parseKeys
 import junit.framework.TestCase
 import org.jetbrains.plugins.ideavim.VimTestCase
 
@@ -54,6 +55,35 @@ class CommandParserTest : VimTestCase() {
     assertEquals("discovery", commands[0].optional)
   }
 
+  fun `test command abbreviations`() {
+    val parser = CommandParser.getInstance()
+    val handler = parser.getCommandHandler(ExCommand(Ranges(), "substitute", ""))
+    assertNotNull(handler)
+    assertSame(handler, parser.getCommandHandler(ExCommand(Ranges(), "s", "")))
+    assertSame(handler, parser.getCommandHandler(ExCommand(Ranges(), "subst", "")))
+    assertSame(handler, parser.getCommandHandler(ExCommand(Ranges(), "&", "")))
+    assertNull(parser.getCommandHandler(ExCommand(Ranges(), "substitutes", "")))
+    assertNull(parser.getCommandHandler(ExCommand(Ranges(), "ubstitute", "")))
+  }
+
+  fun `test repeated command uses new ranges`() {
+    configureByText("""
+      |I found it in a legendary land
+      |${c}all rocks and lavender and tufted grass,
+      |where it was settled on some sodden sand
+      |hard by the torrent of a mountain pass.
+    """.trimMargin())
+
+    typeText(commandToKeys(".d"))
+    typeText(parseKeys("j"))
+    typeText(commandToKeys(".d"))
+
+    myFixture.checkResult("""
+      |I found it in a legendary land
+      |where it was settled on some sodden sand
+    """.trimMargin())
+  }
+
   fun `test simple ex command execution`() {
     val keys = commandToKeys(">>")
     val before = "I ${c}found it in a legendary land"
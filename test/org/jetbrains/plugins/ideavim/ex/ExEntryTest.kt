@@ -263,6 +263,24 @@ class ExEntryTest : VimTestCase() {
     assertExText("set digraph")
   }
 
+  fun `test matching command history down returns to typed text`() {
+    typeExInput(":set digraph<CR>")
+    typeExInput(":digraph<CR>")
+    typeExInput(":set incsearch<CR>")
+    typeExInput(":set digraph<CR>")
+
+    typeExInput(":set<Up>")
+    assertExText("set digraph")
+    typeText("<Up>")
+    assertExText("set incsearch")
+    typeText("<Up>")
+    assertExText("set incsearch")
+    typeText("<Down>")
+    assertExText("set digraph")
+    typeText("<Down>")
+    assertExText("set")
+  }
+
   fun `test search history`() {
     typeExInput("/something cool<CR>")
     typeExInput("/not cool<CR>")
@@ -0,0 +1,46 @@
+/*
+ * IdeaVim - Vim emulator for IDEs based on the IntelliJ platform
+ * Copyright (C) 2003-2020 The IdeaVim authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.jetbrains.plugins.ideavim.ex.handler
+
+import com.intellij.openapi.util.SystemInfo
+import org.jetbrains.plugins.ideavim.VimTestCase
+
+class CmdFilterHandlerTest : VimTestCase() {
+  fun `test filter through sort`() {
+    if (SystemInfo.isWindows) return
+    configureByText("c\nb\na\nd\n")
+    typeText(commandToKeys("1,3!sort"))
+    myFixture.checkResult("a\nb\nc\nd\n")
+  }
+
+  fun `test filter through tr`() {
+    if (SystemInfo.isWindows) return
+    configureByText("one\ntwo\nthree\n")
+    typeText(commandToKeys("2!tr a-z A-Z"))
+    myFixture.checkResult("one\nTWO\nthree\n")
+  }
+
+  fun `test filter with more output than the pipe holds`() {
+    if (SystemInfo.isWindows) return
+    val text = (1..100000).joinToString("") { "line $it\n" }
+    configureByText(text)
+    typeText(commandToKeys("%!cat"))
+    myFixture.checkResult(text)
+  }
+}
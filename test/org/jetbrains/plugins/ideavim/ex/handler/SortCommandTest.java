@@ -116,4 +116,35 @@ public class SortCommandTest extends VimTestCase {
     typeText(commandToKeys("sort"));
     myFixture.checkResult(" a\n b\n c\n whatever\n zee");
   }
+
+  public void testUniqueSort() {
+    myFixture.configureByText("a.txt", "b\na\nb\nB\na\nc\n");
+    typeText(commandToKeys("sort u"));
+    myFixture.checkResult("B\na\nb\nc\n");
+  }
+
+  public void testUniqueCaseInsensitiveSort() {
+    myFixture.configureByText("a.txt", "b\na\nB\nA\nc\n");
+    typeText(commandToKeys("sort ui"));
+    myFixture.checkResult("a\nb\nc\n");
+  }
+
+  public void testPatternSort() {
+    myFixture.configureByText("a.txt", "x3 b\ny1 c\nz2 a\nnone\n");
+    typeText(commandToKeys("sort /\\d/"));
+    myFixture.checkResult("none\nz2 a\nx3 b\ny1 c\n");
+  }
+
+  public void testPatternMatchSort() {
+    myFixture.configureByText("a.txt", "x3 b\ny1 c\nz2 a\nnone\n");
+    typeText(commandToKeys("sort r /\\d/"));
+    myFixture.checkResult("none\ny1 c\nz2 a\nx3 b\n");
+  }
+
+  public void testPatternSortWithLastSearch() {
+    myFixture.configureByText("a.txt", "a,3\nb,1\nc,2\n");
+    enterSearch(",");
+    typeText(commandToKeys("sort n //"));
+    myFixture.checkResult("b,1\nc,2\na,3\n");
+  }
 }
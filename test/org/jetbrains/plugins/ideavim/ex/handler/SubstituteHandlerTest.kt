@@ -18,6 +18,7 @@
 
 package org.jetbrains.plugins.ideavim.ex.handler
 
+import com.maddyhome.idea.vim.VimPlugin
 import com.maddyhome.idea.vim.helper.StringHelper.parseKeys
 import com.maddyhome.idea.vim.option.IgnoreCaseOptionsData
 import com.maddyhome.idea.vim.option.OptionsManager
@@ -354,6 +355,35 @@ class SubstituteHandlerTest : VimOptionTestCase(SmartCaseOptionsData.name, Ignor
     assertPosition(1, 10)
   }
 
+  @VimOptionDefaultAll
+  fun `test substitute with new lines moves marks`() {
+    configureByText(
+      """I found it in a legendary land
+        |all rocks and lavender and tufted grass,
+        |where it was settled on some sodden sand
+        |hard by the torrent of a mountain pass.""".trimMargin())
+    typeText(parseKeys("2G", "ma", "4G", "mb"))
+
+    typeText(commandToKeys("%s/ and /\\r/g"))
+
+    myFixture.checkResult(
+      """I found it in a legendary land
+        |all rocks
+        |lavender
+        |tufted grass,
+        |where it was settled on some sodden sand
+        |hard by the torrent of a mountain pass.""".trimMargin())
+    assertEquals(1, VimPlugin.getMark().getMark(myFixture.editor, 'a')?.logicalLine)
+    assertEquals(5, VimPlugin.getMark().getMark(myFixture.editor, 'b')?.logicalLine)
+  }
+
+  @VimOptionDefaultAll
+  fun `test substitute many matches`() {
+    val before = (0 until 500).joinToString("\n") { "foo $it foo" }
+    val after = (0 until 500).joinToString("\n") { "bar $it bar" }
+    doTest("%s/foo/bar/g", before, after)
+  }
+
   private fun doTest(command: String, before: String, after: String) {
     doTest(commandToKeys(command), before, after)
   }
@@ -205,6 +205,15 @@ class VimMultipleCursorsExtensionTest : VimTestCase() {
     myFixture.checkResult(after)
   }
 
+  fun testSelectAllManyOccurrences() {
+    configureByText("q${c}we asd\n" + "qwe asd\n".repeat(999))
+
+    typeText(parseKeys("<Plug>AllWholeOccurrences"))
+
+    assertEquals(1000, myFixture.editor.caretModel.caretCount)
+    myFixture.checkResult("${s}qwe$se asd\n".repeat(1000))
+  }
+
   fun testSelectAllNotWhole() {
     val before = """Int
       |Integer
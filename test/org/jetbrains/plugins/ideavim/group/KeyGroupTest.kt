@@ -63,4 +63,22 @@ class KeyGroupTest : VimTestCase() {
     typeText(keys)
     myFixture.checkResult("${c}I found it in a legendary land")
   }
-}
\ No newline at end of file
+
+  fun `test removed mapping is no longer a prefix`() {
+    val keyGroup = VimPlugin.getKey()
+    val otherOwner = MappingOwner.Plugin.get("KeyGroupTest2")
+    val mapping = keyGroup.getKeyMapping(MappingMode.N)
+
+    keyGroup.putKeyMapping(MappingMode.N, parseKeys("gx"), otherOwner, parseKeys("h"), false)
+    keyGroup.putKeyMapping(MappingMode.N, parseKeys("gxy"), owner, parseKeys("l"), false)
+    assertTrue(mapping.isPrefix(parseKeys("gx")))
+
+    keyGroup.removeKeyMapping(owner)
+    assertFalse(mapping.isPrefix(parseKeys("gx")))
+    assertNotNull(mapping.get(parseKeys("gx")))
+    assertNull(mapping.get(parseKeys("gxy")))
+
+    keyGroup.removeKeyMapping(otherOwner)
+    assertNull(mapping.get(parseKeys("gx")))
+  }
+}
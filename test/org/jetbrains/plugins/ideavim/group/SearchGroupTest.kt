@@ -18,16 +18,24 @@
 
 package org.jetbrains.plugins.ideavim.group
 
+import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.editor.EditorFactory
 import com.intellij.openapi.editor.colors.EditorColors
 import com.intellij.openapi.editor.colors.EditorColorsManager
 import com.intellij.openapi.editor.markup.EffectType
 import com.intellij.openapi.util.Ref
+import com.intellij.testFramework.PlatformTestUtil
 import com.maddyhome.idea.vim.VimPlugin
 import com.maddyhome.idea.vim.command.CommandFlags
+import com.maddyhome.idea.vim.group.SearchResultCache
+import com.maddyhome.idea.vim.helper.MessageHelper
+import com.maddyhome.idea.vim.helper.Msg
 import com.maddyhome.idea.vim.helper.RunnableHelper
 import com.maddyhome.idea.vim.helper.StringHelper.parseKeys
 import com.maddyhome.idea.vim.helper.VimTestFunction
+import com.maddyhome.idea.vim.helper.vimLastHighlighters
 import com.maddyhome.idea.vim.option.OptionsManager
+import com.maddyhome.idea.vim.regexp.RegExpCache
 import org.jetbrains.plugins.ideavim.VimTestCase
 import java.util.*
 
@@ -118,6 +126,44 @@ class SearchGroupTest : VimTestCase() {
     assertEquals(-1, pos)
   }
 
+  fun `test search skips lines without required text`() {
+    val pos = search("\\<two\\>",
+      """${c}one twofold
+                 |twenty two""".trimMargin())
+    assertEquals(19, pos)
+  }
+
+  fun `test search skips to required text ignoring case`() {
+    val pos = search("\\cNEEDLE",
+      """${c}haystack
+                 |hay Needle""".trimMargin())
+    assertEquals(13, pos)
+  }
+
+  fun `test search with nested multi doesn't backtrack`() {
+    val pos = search("\\(\\w\\+\\s*\\)*[!]",
+      """${c}${"ab ".repeat(30)}
+                 |end!""".trimMargin())
+    assertEquals(91, pos)
+  }
+
+  fun `test search with back reference and NFA engine`() {
+    OptionsManager.regexpengine.set(2)
+    val pos = search("\\(o\\)\\1", "${c}one foo")
+    assertEquals(5, pos)
+  }
+
+  fun `test search highlighting stops after redrawtime`() {
+    OptionsManager.regexpengine.set(1)
+    OptionsManager.redrawtime.set(100)
+    setHighlightSearch()
+    val pos = search("\\(\\w\\+\\s*\\)*[!]",
+      """${c}end! end!
+                 |${"ab ".repeat(40)}""".trimMargin())
+    assertEquals(5, pos)
+    assertEquals(MessageHelper.message(Msg.e_redrawtime), VimPlugin.getMessage())
+  }
+
   fun `test smart case search case insensitive`() {
     setIgnoreCaseAndSmartCase()
     val pos = search("tostring",
@@ -1173,6 +1219,160 @@ class SearchGroupTest : VimTestCase() {
             |hard by the torrent of a mountain pass.""".trimMargin())
   }
 
+  fun `test deleting part of multiline match removes search highlight`() {
+    setHighlightSearch()
+    configureByText(
+      """I found it in a legendary land
+         |${c}all rocks and lavender and tufted grass,
+         |where it was settled on some sodden sand
+         |hard by the torrent of a mountain pass.""".trimMargin())
+
+    val pattern = """land\nall"""
+    enterSearch(pattern)
+    typeText(parseKeys("j", "0", "x")) // deletes "a" from "all" on line 2
+
+    assertNoSearchHighlights()
+  }
+
+  fun `test inserting text far from matches keeps other search highlights`() {
+    setHighlightSearch()
+    configureByText(
+      """I found it in a legendary land
+         |all rocks and lavender and tufted grass,
+         |${c}where it was settled on some sodden sand
+         |hard by the torrent of a mountain pass.""".trimMargin())
+
+    val pattern = "and"
+    enterSearch(pattern)
+    typeText(parseKeys("o", "sand and sand", "<Esc>"))
+
+    assertSearchHighlights(pattern,
+      """I found it in a legendary l«and»
+           |all rocks «and» lavender «and» tufted grass,
+           |where it was settled on some sodden s«and»
+           |s«and» «and» s«and»
+           |hard by the torrent of a mountain pass.""".trimMargin())
+  }
+
+  fun `test search highlights all matches in a large document`() {
+    setHighlightSearch()
+    configureByText((0 until 6000).joinToString("\n") { if (it % 100 == 0) "foo bar $it" else "line $it" })
+
+    enterSearch("bar")
+
+    assertEquals(60, myFixture.editor.markupModel.allHighlighters.size)
+  }
+
+  fun `test search highlights all editors of the document`() {
+    setHighlightSearch()
+    configureByText("foo bar\nbar foo\n")
+    val second = EditorFactory.getInstance().createEditor(myFixture.editor.document, myFixture.project)
+    try {
+      val highlights = { editor: Editor ->
+        editor.markupModel.allHighlighters.map { it.startOffset to it.endOffset }.sortedBy { it.first }
+      }
+
+      val searches = SearchResultCache.getSearchCount()
+      enterSearch("foo")
+      assertEquals(listOf(0 to 3, 12 to 15), highlights(myFixture.editor))
+      assertEquals(listOf(0 to 3, 12 to 15), highlights(second))
+      // The second editor gets the matches that were found for the first one
+      assertEquals(searches + 1, SearchResultCache.getSearchCount())
+      assertTrue(SearchResultCache.isCached(myFixture.editor.document))
+
+      typeText(parseKeys("O", "foo", "<Esc>"))
+      assertEquals(listOf(0 to 3, 4 to 7, 16 to 19), highlights(myFixture.editor))
+      assertEquals(listOf(0 to 3, 4 to 7, 16 to 19), highlights(second))
+
+      // Without highlights the matches aren't kept
+      enterCommand("nohlsearch")
+      assertFalse(SearchResultCache.isCached(myFixture.editor.document))
+    } finally {
+      EditorFactory.getInstance().releaseEditor(second)
+    }
+  }
+
+  fun `test incsearch in background applies only the newest search`() {
+    setHighlightSearch()
+    configureByText("foo bar\nbar foo\nbaz\n")
+    val editor = myFixture.editor
+    val search = VimPlugin.getSearch()
+    val offsets = mutableListOf<Int>()
+    var superseded = false
+
+    search.updateIncsearchHighlightsInBackground(editor, "foo", true, 0, null, { superseded }) { offsets += it }
+    superseded = true
+    val promise = search.updateIncsearchHighlightsInBackground(editor, "bar", true, 0, null, { false }) { offsets += it }
+    assertNotNull(promise)
+    PlatformTestUtil.waitForPromise(promise!!)
+    PlatformTestUtil.dispatchAllEventsInIdeEventQueue()
+
+    assertEquals(listOf(4), offsets)
+    assertEquals(listOf(4 to 7, 8 to 11),
+      editor.markupModel.allHighlighters.map { it.startOffset to it.endOffset }.distinct().sortedBy { it.first })
+  }
+
+  fun `test find all in a large document joins matches across chunks`() {
+    val text = (0 until 30000).joinToString("\n") {
+      when {
+        it == 4000 -> "begin"
+        it == 11000 -> "finish"
+        it % 1000 == 999 -> "start"
+        it % 1000 == 0 && it > 0 -> "end"
+        else -> "line $it"
+      }
+    }
+    configureByText(text)
+
+    val results = SearchGroup.findAll(myFixture.editor, "start\\nend\\|begin\\_.\\{-}finish", 0, -1, false)
+
+    // The match of begin runs through a whole chunk, the matches of start and end inside it are skipped
+    assertEquals(22, results.size)
+    assertEquals(text.indexOf("begin"), results[3].startOffset)
+    assertEquals(text.indexOf("finish") + "finish".length, results[3].endOffset)
+    assertEquals(text.indexOf("start", text.indexOf("finish")), results[4].startOffset)
+  }
+
+  fun `test deleting line with matches removes its search highlights`() {
+    setHighlightSearch()
+    configureByText(
+      """foo one
+         |${c}foo two foo
+         |bar
+         |foo three""".trimMargin())
+
+    val pattern = "foo"
+    enterSearch(pattern)
+    typeText(parseKeys("dd"))
+
+    assertSearchHighlights(pattern,
+      """«foo» one
+           |bar
+           |«foo» three""".trimMargin())
+  }
+
+  fun `test deleting several lines with matches keeps index of search highlights in order`() {
+    setHighlightSearch()
+    configureByText(
+      """foo one
+         |${c}foo two foo
+         |foo three
+         |bar
+         |bar foo
+         |foo end""".trimMargin())
+
+    val pattern = "foo"
+    enterSearch(pattern)
+    typeText(parseKeys("3dd", "k", "J"))
+
+    assertSearchHighlights(pattern,
+      """«foo» one bar «foo»
+           |«foo» end""".trimMargin())
+    val index = myFixture.editor.vimLastHighlighters!!
+    assertTrue(index.highlighters.all { it.isValid })
+    assertEquals(myFixture.editor.markupModel.allHighlighters.size, index.size())
+  }
+
   fun `test search highlight with tabs`() {
     setHighlightSearch()
     configureByText("\tfoo")
@@ -1188,6 +1388,22 @@ class SearchGroupTest : VimTestCase() {
     assertEquals(9, res)
   }
 
+  fun `test repeated search reuses compiled pattern`() {
+    RegExpCache.clear()
+    configureByText(
+      """I found it in a legendary land
+         |${c}all rocks and lavender and tufted grass,
+         |where it was settled on some sodden sand
+         |hard by the torrent of a mountain pass.""".trimMargin())
+
+    enterSearch("and")
+    val misses = RegExpCache.getMisses()
+    typeText(parseKeys("n", "n", "N"))
+
+    assertEquals(misses, RegExpCache.getMisses())
+    assertTrue(RegExpCache.getHits() >= 3)
+  }
+
   private fun setIgnoreCase() = OptionsManager.ignorecase.set()
 
   private fun setIgnoreCaseAndSmartCase() {
@@ -18,8 +18,13 @@
 
 package org.jetbrains.plugins.ideavim.helper;
 
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.maddyhome.idea.vim.helper.EditorHelper;
 import com.maddyhome.idea.vim.helper.SearchHelper;
 import com.maddyhome.idea.vim.helper.SearchHelperKtKt;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.plugins.ideavim.VimTestCase;
 
 import static com.maddyhome.idea.vim.helper.StringHelper.parseKeys;
@@ -127,6 +132,18 @@ public class SearchHelperTest extends VimTestCase {
     assertTrue(inString);
   }
 
+  public void testCheckInStringInsideDoubleQuotesOnSecondLine() {
+    String text = "a\"b\nabc\"def\"ghi";
+    assertTrue(SearchHelperKtKt.checkInString(text, 9, true));
+    assertFalse(SearchHelperKtKt.checkInString(text, 5, true));
+  }
+
+  public void testCheckInStringOnNewLine() {
+    String text = "abc\"def\ndef\"ghi";
+    boolean inString = SearchHelperKtKt.checkInString(text, 7, true);
+    assertFalse(inString);
+  }
+
   public void testCheckInStringOnClosingDoubleQuote() {
     String text = "abc\"def\"ghi";
     boolean inString = SearchHelperKtKt.checkInString(text, 7, true);
@@ -174,4 +191,43 @@ public class SearchHelperTest extends VimTestCase {
     boolean inString = SearchHelperKtKt.checkInString(text, 8, true);
     assertFalse(inString);
   }
+
+  public void testCountWordsAfterChanges() {
+    final Editor editor = configureByText("one two\nthree four five\n\nsix seven\n");
+    final Document document = editor.getDocument();
+    assertWordCount(editor);
+
+    WriteCommandAction.runWriteCommandAction(myFixture.getProject(), () -> document.insertString(4, "eight nine "));
+    assertWordCount(editor);
+    WriteCommandAction.runWriteCommandAction(myFixture.getProject(), () -> document.deleteString(8, 20));
+    assertWordCount(editor);
+    WriteCommandAction.runWriteCommandAction(myFixture.getProject(), () -> document.insertString(0, "\n\n"));
+    assertWordCount(editor);
+    WriteCommandAction.runWriteCommandAction(myFixture.getProject(),
+                                             () -> document.deleteString(document.getTextLength() - 1,
+                                                                         document.getTextLength()));
+    assertWordCount(editor);
+  }
+
+  public void testFindNextWordWithLargeCount() {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      text.append("word").append(i).append(i % 10 == 9 ? "\n" : " ");
+    }
+    final Editor editor = configureByText(text.toString());
+    final int expected = SearchHelper.findNextWord(text, 0, EditorHelper.getFileSize(editor), 150, false, false);
+
+    assertEquals(expected, SearchHelper.findNextWord(editor, 0, 150, false));
+    assertEquals(text.indexOf("word150"), expected);
+  }
+
+  private static void assertWordCount(@NotNull Editor editor) {
+    final CharSequence chars = editor.getDocument().getCharsSequence();
+    final int offset = editor.getCaretModel().getOffset();
+    final SearchHelper.CountPosition expected =
+      SearchHelper.countWords(chars, 0, EditorHelper.getFileSize(editor), offset);
+    final SearchHelper.CountPosition actual = SearchHelper.countWords(editor);
+    assertEquals(expected.getCount(), actual.getCount());
+    assertEquals(expected.getPosition(), actual.getPosition());
+  }
 }